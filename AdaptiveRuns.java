@@ -0,0 +1,298 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  AdaptiveRuns.java
+ *  Purpose: run creation that takes advantage of order already in the input, used by CreateRuns with
+ *	-adaptive. Replacement selection puts every line through the heap, so sorted input still pays for a
+ *	downheap per line, and reverse-sorted input gives runs of exactly the heap size. Here the lines held
+ *	for the current run are kept in a sorted deque for as long as they arrive in order: a line no smaller
+ *	than the last one held goes on the back, and one no larger than the first goes on the front, each
+ *	after a single comparison. Only a line that falls inside the deque goes into a heap, so input that is
+ *	nearly sorted, such as a feed in time order with a little disorder, costs one or two comparisons per
+ *	line and keeps the heap small. A line that belongs to the current run and is no larger than any line
+ *	held is the next line of the run, so it is written straight out without being held at all.
+ *
+ *	As in replacement selection, lines smaller than the last one written wait for the next run. When the
+ *	current run has no lines left they are sorted with Arrays.sort and become the next run's deque. The
+ *	heap and the waiting lines share one array, the heap from the front and the waiting lines from the
+ *	back, so at most maxHeapSize lines are held between the deque and that array.
+ *
+ *	A descending stretch, every line held having arrived no larger than the one before it, would still be
+ *	cut into runs of maxHeapSize lines, as each new line is smaller than the last one written. So when the
+ *	deque is full of such a stretch and the next line continues it, the deque is written in order to a
+ *	temporary spill file as a segment of its own and emptied instead. Once a line breaks the stretch, or
+ *	the input ends, the deque and then the segments, the latest first, are written to the run, so the
+ *	whole stretch becomes part of a single run at the cost of writing its lines twice.
+ *
+ */
+class AdaptiveRuns {
+    private final int capacity_;
+    private final RunWriter writer_;
+    private final RecordComparator comparator_;
+    // Lines of the current run held in order, as a ring starting at head_, and their key prefixes
+    private String[] deque_;
+    private long[] dequeKeys_;
+    private int head_ = 0;
+    private int dequeSize_ = 0;
+    // The heap of current run lines that arrived out of order in [0, heapSize_), with their key prefixes, and
+    // the lines waiting for the next run in [capacity_ - waiting_, capacity_)
+    private String[] lines_;
+    private long[] heapKeys_;
+    private int heapSize_ = 0;
+    private int waiting_ = 0;
+    // The last line written to the current run, or null when the run has just started
+    private String last_ = null;
+    private long lastKey_;
+    private int runCount_ = 0;
+    // Whether the lines in the deque arrived in descending order with nothing else held, and the segments of the
+    // stretch written out to the spill file, with the smallest line among them, or null when nothing was spilled
+    private boolean falling_ = true;
+    private File spillFile_ = null;
+    private RunWriter spill_ = null;
+    private String spillLow_;
+    private long spillLowKey_;
+
+    // AdaptiveRuns constructor, passed the number of lines it may hold, the writer and the order to sort in
+    private AdaptiveRuns(int maxHeapSize, RunWriter writer, RecordComparator comparator) {
+        capacity_ = maxHeapSize;
+        writer_ = writer;
+        comparator_ = comparator;
+        deque_ = new String[maxHeapSize];
+        dequeKeys_ = new long[maxHeapSize];
+        lines_ = new String[maxHeapSize];
+        heapKeys_ = new long[maxHeapSize];
+    }
+
+    // Public method to create runs from every line the reader returns, holding at most maxHeapSize lines, and
+    // write them to the RunWriter. Returns the number of runs created
+    public static int createRuns(RunReader br, RunWriter pw, int maxHeapSize, RecordComparator comparator) throws IOException {
+        AdaptiveRuns runs = new AdaptiveRuns(maxHeapSize, pw, comparator);
+        try {
+            String line;
+            while ((line = br.readRecord()) != null) {
+                runs.add(line);
+            }
+            // Writing out the rest of the current run, then the lines waiting for the next as the last run
+            if (runs.spill_ != null) {
+                runs.unspill();
+            }
+            while (runs.dequeSize_ + runs.heapSize_ > 0) {
+                runs.writeSmallest();
+            }
+            runs.startRun();
+            while (runs.dequeSize_ > 0) {
+                runs.writeSmallest();
+            }
+            if (pw.endRun()) {
+                runs.runCount_++;
+            }
+            return runs.runCount_;
+        }
+        finally {
+            runs.deleteSpill();
+        }
+    }
+
+    // Private method to take in the next line read, first writing out the smallest line of the current run if
+    // every place is taken
+    private void add(String line) throws IOException {
+        // With -combine a record that belongs with the last one written goes straight to the writer, which is
+        // still holding that one back
+        if (last_ != null && writer_.combines() && Combiner.sameGroup(line, last_)) {
+            writer_.writeRecord(line);
+            return;
+        }
+        long key = comparator_.prefix(line);
+        boolean falls = inRun(line, key) && fallsBelow(line, key);
+        if (spill_ != null && !falls) {
+            unspill();
+        }
+        if (dequeSize_ + heapSize_ + waiting_ == capacity_) {
+            if (dequeSize_ + heapSize_ == 0) {
+                startRun();
+            }
+            if (falling_ && dequeSize_ == capacity_ && falls) {
+                spill();
+            }
+            else if (inRun(line, key) && belowHeld(line, key)) {
+                write(line, key);
+                return;
+            }
+            else {
+                writeSmallest();
+            }
+        }
+        if (!inRun(line, key)) {
+            lines_[capacity_ - ++waiting_] = line;
+            falling_ = false;
+        }
+        else if (dequeSize_ == 0 || compare(line, key, dequeAt(dequeSize_ - 1)) >= 0) {
+            // A line going into an empty deque starts a stretch, unless lines wait or the heap holds some, and one
+            // equal to every line held carries it on
+            falling_ = dequeSize_ == 0 ? heapSize_ + waiting_ == 0 : falling_ && compare(line, key, head_) <= 0;
+            int tail = dequeAt(dequeSize_);
+            deque_[tail] = line;
+            dequeKeys_[tail] = key;
+            dequeSize_++;
+        }
+        else if (compare(line, key, head_) <= 0) {
+            head_ = dequeAt(capacity_ - 1);
+            deque_[head_] = line;
+            dequeKeys_[head_] = key;
+            dequeSize_++;
+        }
+        else if (dequeSize_ > 1 && compare(line, key, dequeAt(dequeSize_ - 2)) >= 0) {
+            // The last line of the deque arrived early, so it goes into the heap and this line takes its place,
+            // rather than every line after it falling inside the deque
+            int tail = dequeAt(dequeSize_ - 1);
+            CreateRuns.insert(lines_, heapKeys_, heapSize_, deque_[tail], comparator_);
+            heapSize_++;
+            deque_[tail] = line;
+            dequeKeys_[tail] = key;
+            falling_ = false;
+        }
+        else {
+            CreateRuns.insert(lines_, heapKeys_, heapSize_, line, comparator_);
+            heapSize_++;
+            falling_ = false;
+        }
+    }
+
+    // Private method returning whether a line is no larger than the smallest line of the descending stretch, held
+    // in the deque or, once the deque has been spilled, in the spill file
+    private boolean fallsBelow(String line, long key) {
+        if (dequeSize_ > 0) {
+            return compare(line, key, head_) <= 0;
+        }
+        return spill_ != null && comparator_.compare(line, key, spillLow_, spillLowKey_) <= 0;
+    }
+
+    // Private method to write the deque, which holds only the descending stretch, to the spill file as a segment
+    // in order and empty it
+    private void spill() throws IOException {
+        if (spill_ == null) {
+            if (spillFile_ == null) {
+                spillFile_ = File.createTempFile("AdaptiveRuns-", ".spill");
+            }
+            spill_ = new RunWriter(spillFile_, false);
+        }
+        spillLow_ = deque_[head_];
+        spillLowKey_ = dequeKeys_[head_];
+        while (dequeSize_ > 0) {
+            spill_.writeRecord(deque_[head_]);
+            deque_[head_] = null;
+            head_ = dequeAt(1);
+            dequeSize_--;
+        }
+        spill_.endRun();
+    }
+
+    // Private method to end the descending stretch, writing the deque and then the spilled segments, the latest
+    // first, to the current run, each of them being no larger than the segment spilled before it
+    private void unspill() throws IOException {
+        while (dequeSize_ > 0) {
+            writeSmallest();
+        }
+        spill_.close();
+        RunIndex segments = spill_.index();
+        spill_ = null;
+        spillLow_ = null;
+        for (int i = segments.size() - 1; i >= 0; i--) {
+            RunReader segment = new RunReader(spillFile_, segments.offset(i), segments.length(i));
+            try {
+                String line;
+                while ((line = segment.readRecord()) != null) {
+                    write(line, comparator_.prefix(line));
+                }
+            }
+            finally {
+                segment.close();
+            }
+        }
+    }
+
+    // Private method to delete the spill file, if a descending stretch ever needed one
+    private void deleteSpill() throws IOException {
+        if (spill_ != null) {
+            spill_.close();
+        }
+        if (spillFile_ != null) {
+            spillFile_.delete();
+        }
+    }
+
+    // Private method to write out the smaller of the first line of the deque and the top of the heap
+    private void writeSmallest() throws IOException {
+        if (heapSize_ > 0 && (dequeSize_ == 0
+                || comparator_.compare(lines_[0], heapKeys_[0], deque_[head_], dequeKeys_[head_]) < 0)) {
+            String line = lines_[0];
+            long key = heapKeys_[0];
+            heapSize_--;
+            CreateRuns.swap(lines_, heapKeys_, 0, heapSize_);
+            lines_[heapSize_] = null;
+            CreateRuns.downheap(lines_, heapKeys_, 0, heapSize_, comparator_);
+            write(line, key);
+            return;
+        }
+        String line = deque_[head_];
+        long key = dequeKeys_[head_];
+        deque_[head_] = null;
+        head_ = dequeAt(1);
+        dequeSize_--;
+        write(line, key);
+    }
+
+    // Private method to end the current run and start the next from the lines waiting for it, sorted into the deque
+    private void startRun() throws IOException {
+        if (writer_.endRun()) {
+            runCount_++;
+        }
+        last_ = null;
+        int from = capacity_ - waiting_;
+        Arrays.sort(lines_, from, capacity_, comparator_);
+        for (int i = 0; i < waiting_; i++) {
+            deque_[i] = lines_[from + i];
+            dequeKeys_[i] = comparator_.prefix(deque_[i]);
+            lines_[from + i] = null;
+        }
+        head_ = 0;
+        dequeSize_ = waiting_;
+        waiting_ = 0;
+        falling_ = dequeSize_ <= 1;
+    }
+
+    private void write(String line, long key) throws IOException {
+        writer_.writeRecord(line);
+        last_ = line;
+        lastKey_ = key;
+    }
+
+    // Private method returning whether a line can still go in the current run, being no smaller than the last
+    // line written
+    private boolean inRun(String line, long key) {
+        return last_ == null || comparator_.compare(line, key, last_, lastKey_) >= 0;
+    }
+
+    // Private method returning whether a line is no larger than every line held for the current run
+    private boolean belowHeld(String line, long key) {
+        if (dequeSize_ > 0 && compare(line, key, head_) > 0) {
+            return false;
+        }
+        return heapSize_ == 0 || comparator_.compare(line, key, lines_[0], heapKeys_[0]) <= 0;
+    }
+
+    // Private method to compare a line with the line at a position of the deque's ring
+    private int compare(String line, long key, int slot) {
+        return comparator_.compare(line, key, deque_[slot], dequeKeys_[slot]);
+    }
+
+    // Private method returning the ring position of the deque's i-th line, for i from 0 up to capacity_
+    private int dequeAt(int i) {
+        int slot = head_ + i;
+        return slot >= capacity_ ? slot - capacity_ : slot;
+    }
+}
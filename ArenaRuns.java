@@ -0,0 +1,351 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  ArenaRuns.java
+ *  Purpose: replacement selection over a byte[] arena, used by CreateRuns with -arena. Lines are read as
+ *	UTF-8 bytes and copied into one arena allocated up front, and the heap holds only the int offset of
+ *	each line in the arena and its cached 8 byte key prefix. No object is created per line, so the memory
+ *	given to the arena holds lines rather than String headers, and garbage collection stays flat however
+ *	many lines pass through. Because lines differ in length the heap is kept full by bytes, not by count:
+ *	lines are written out of the heap whenever the arena has no room for the next line read.
+ *
+ *	Each line in the arena is an 8 byte header followed by its bytes. The first int of the header is the
+ *	length, made negative once the line has been written out. The second int is only used while the arena
+ *	is compacted, to find the heap slot that points at the line.
+ *
+ *	The heap slots [0, current_) hold the lines of the run being written, in heap order, and the slots
+ *	[current_, size_) hold lines that are smaller than the last line written and so wait for the next run.
+ *
+ */
+class ArenaRuns {
+    private static final int HEADER = 8;
+
+    private byte[] arena_;
+    // Next free byte at the end of the arena, and the bytes still held by lines in the heap
+    private int used_ = 0;
+    private long live_ = 0;
+    // Bytes that must be free before the arena is compacted, so compaction is not repeated for every line
+    private int slack_;
+    // Arena offset and key prefix of every line in the heap
+    private int[] heap_ = new int[1024];
+    private long[] keys_ = new long[1024];
+    private int current_ = 0;
+    private int size_ = 0;
+    // Copy of the last line written, which the next line read is compared against
+    private byte[] last_ = new byte[256];
+    private int lastLength_ = -1;
+    private long lastKey_;
+    private RunWriter writer_;
+    // Comparisons made between lines, for SortMetrics
+    private long comparisons_ = 0;
+
+    // ArenaRuns constructor, passed the size of the arena in bytes and the writer the runs go to
+    private ArenaRuns(int arenaSize, RunWriter writer) {
+        arena_ = new byte[arenaSize];
+        slack_ = arenaSize / 16;
+        writer_ = writer;
+    }
+
+    // Public method to create runs from the lines in the given byte range of a file, using an arena of
+    // arenaSize bytes, and write them to the RunWriter. With -key each line goes into the arena with its sort
+    // keys in front, and with -combine as the combiner's record. The lines read and the comparisons made are
+    // added to the createRuns metrics in the options. Returns the number of runs created
+    public static int createRuns(File input, long offset, long length, RunWriter writer, int arenaSize,
+            SortOptions options) throws IOException {
+        ArenaRuns runs = new ArenaRuns(arenaSize, writer);
+        LineInput in = new LineInput(input, offset, length);
+        KeySpec.Encoder encoder = options.key == null ? null : options.key.encoder();
+        Combiner.Group group = options.combine == null ? null : new Combiner.Group(options.combine, encoder != null);
+        int runCount = writer.index().size();
+        long lines = 0;
+        try {
+            int lineLength;
+            while ((lineLength = in.readLine()) >= 0) {
+                lines++;
+                byte[] line = in.line;
+                if (encoder != null) {
+                    lineLength = encoder.encode(line, lineLength);
+                    line = encoder.line;
+                }
+                if (group != null) {
+                    lineLength = group.first(line, lineLength);
+                    line = group.line;
+                }
+                runs.add(line, lineLength);
+            }
+            // Writing out everything left, which ends the current run and writes the waiting lines as the last
+            while (runs.size_ > 0) {
+                runs.writeSmallest();
+            }
+            writer.endRun();
+        }
+        finally {
+            in.close();
+        }
+        options.metrics.createRuns.read(lines, length);
+        options.metrics.createRuns.compared(runs.comparisons_);
+        return writer.index().size() - runCount;
+    }
+
+    // Private method to copy a line into the arena and add it to the heap
+    private void add(byte[] line, int length) throws IOException {
+        // A record that combines with the last one written goes straight to the writer, which is still holding
+        // it back, so it never takes up room in the arena
+        if (lastLength_ >= 0 && writer_.combines() && Combiner.sameGroup(line, 0, length, last_, 0, lastLength_)) {
+            writer_.writeRecord(line, 0, length);
+            return;
+        }
+        int needed = HEADER + length;
+        if (needed > arena_.length) {
+            throw new IOException("a line of " + length + " bytes does not fit in an arena of " + arena_.length + " bytes");
+        }
+        // Writing lines out until there is room, compacting once enough has been freed
+        while (used_ + needed > arena_.length) {
+            if (size_ == 0 || arena_.length - live_ >= needed + slack_) {
+                compact();
+            }
+            else {
+                writeSmallest();
+            }
+        }
+        int offset = used_;
+        putInt(offset, length);
+        System.arraycopy(line, 0, arena_, offset + HEADER, length);
+        used_ += needed;
+        live_ += needed;
+        long key = prefix(arena_, offset + HEADER, length);
+
+        if (size_ == heap_.length) {
+            heap_ = Arrays.copyOf(heap_, size_ * 2);
+            keys_ = Arrays.copyOf(keys_, size_ * 2);
+        }
+        if (lastLength_ < 0 || compareToLast(offset, key) >= 0) {
+            // The line can still go in the current run: the first waiting line moves to the end to make room
+            heap_[size_] = heap_[current_];
+            keys_[size_] = keys_[current_];
+            heap_[current_] = offset;
+            keys_[current_] = key;
+            siftUp(current_);
+            current_++;
+        }
+        else {
+            // The line is smaller than the last one written, so it waits for the next run
+            heap_[size_] = offset;
+            keys_[size_] = key;
+        }
+        size_++;
+    }
+
+    // Private method to write out the smallest line of the current run, first starting a new run from the
+    // waiting lines if the current run has no lines left
+    private void writeSmallest() throws IOException {
+        if (current_ == 0) {
+            writer_.endRun();
+            current_ = size_;
+            for (int i = current_ / 2 - 1; i >= 0; i--) {
+                siftDown(i);
+            }
+            lastLength_ = -1;
+        }
+        int offset = heap_[0];
+        int length = getInt(offset);
+        writer_.writeRecord(arena_, offset + HEADER, length);
+        // Keeping a copy of the line, as its space in the arena can be reused straight away
+        if (last_.length < length) {
+            last_ = new byte[Math.max(length, last_.length * 2)];
+        }
+        System.arraycopy(arena_, offset + HEADER, last_, 0, length);
+        lastLength_ = length;
+        lastKey_ = keys_[0];
+        putInt(offset, -length - 1);
+        live_ -= HEADER + length;
+
+        // The last line of the heap takes the root, and the last waiting line fills the slot it leaves
+        current_--;
+        heap_[0] = heap_[current_];
+        keys_[0] = keys_[current_];
+        heap_[current_] = heap_[size_ - 1];
+        keys_[current_] = keys_[size_ - 1];
+        size_--;
+        siftDown(0);
+    }
+
+    // Private method to slide every line still in the heap to the front of the arena, in arena order
+    private void compact() {
+        // Recording in each line's header which heap slot points at it
+        for (int i = 0; i < size_; i++) {
+            putInt(heap_[i] + 4, i);
+        }
+        int from = 0;
+        int to = 0;
+        while (from < used_) {
+            int length = getInt(from);
+            int size;
+            if (length >= 0) {
+                size = HEADER + length;
+                heap_[getInt(from + 4)] = to;
+                System.arraycopy(arena_, from, arena_, to, size);
+                to += size;
+            }
+            else {
+                size = HEADER - length - 1;
+            }
+            from += size;
+        }
+        used_ = to;
+    }
+
+    // Private method to move a line up the current run's heap to its place
+    private void siftUp(int pos) {
+        while (pos > 0 && compare((pos - 1) / 2, pos) > 0) {
+            swap((pos - 1) / 2, pos);
+            pos = (pos - 1) / 2;
+        }
+    }
+
+    // Private method to move a line down the current run's heap to its place
+    private void siftDown(int pos) {
+        while (true) {
+            int left = pos * 2 + 1;
+            if (left >= current_) {
+                return;
+            }
+            int smaller = left;
+            if (left + 1 < current_ && compare(left + 1, left) < 0) {
+                smaller = left + 1;
+            }
+            if (compare(pos, smaller) <= 0) {
+                return;
+            }
+            swap(pos, smaller);
+            pos = smaller;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int offset = heap_[a];
+        heap_[a] = heap_[b];
+        heap_[b] = offset;
+        long key = keys_[a];
+        keys_[a] = keys_[b];
+        keys_[b] = key;
+    }
+
+    // Private method to compare the lines in two heap slots, by key prefix and then by their bytes
+    private int compare(int a, int b) {
+        comparisons_++;
+        if (keys_[a] != keys_[b]) {
+            return Long.compareUnsigned(keys_[a], keys_[b]);
+        }
+        int aOffset = heap_[a];
+        int bOffset = heap_[b];
+        return compare(arena_, aOffset + HEADER, getInt(aOffset), arena_, bOffset + HEADER, getInt(bOffset));
+    }
+
+    // Private method to compare a line in the arena with the last line written
+    private int compareToLast(int offset, long key) {
+        comparisons_++;
+        if (key != lastKey_) {
+            return Long.compareUnsigned(key, lastKey_);
+        }
+        return compare(arena_, offset + HEADER, getInt(offset), last_, 0, lastLength_);
+    }
+
+    // Public method to compare two UTF-8 lines held in byte arrays, in the order of String.compareTo
+    public static int compare(byte[] a, int aStart, int aLength, byte[] b, int bStart, int bLength) {
+        int i = Arrays.mismatch(a, aStart, aStart + aLength, b, bStart, bStart + bLength);
+        if (i < 0) {
+            return 0;
+        }
+        if (i == aLength || i == bLength) {
+            return aLength - bLength;
+        }
+        return ByteMerge.compareBytes(a[aStart + i], b[bStart + i]);
+    }
+
+    // Public method returning the key prefix of a UTF-8 line: its first eight bytes, as ByteMerge orders them,
+    // packed into a long and padded with zeros
+    public static long prefix(byte[] bytes, int start, int length) {
+        long prefix = 0;
+        int n = Math.min(8, length);
+        for (int i = 0; i < n; i++) {
+            prefix |= (long) ByteMerge.sortValue(bytes[start + i]) << (56 - 8 * i);
+        }
+        return prefix;
+    }
+
+    private int getInt(int offset) {
+        return ((arena_[offset] & 0xFF) << 24) | ((arena_[offset + 1] & 0xFF) << 16)
+                | ((arena_[offset + 2] & 0xFF) << 8) | (arena_[offset + 3] & 0xFF);
+    }
+
+    private void putInt(int offset, int value) {
+        arena_[offset] = (byte) (value >> 24);
+        arena_[offset + 1] = (byte) (value >> 16);
+        arena_[offset + 2] = (byte) (value >> 8);
+        arena_[offset + 3] = (byte) value;
+    }
+
+    // Reads the lines of a byte range of a file as UTF-8 bytes, without the '\n' or "\r\n" that ends them,
+    // into one reused line buffer
+    static class LineInput {
+        private FileInputStream in_;
+        private byte[] buffer_ = new byte[1 << 16];
+        private int position_ = 0;
+        private int limit_ = 0;
+        private long remaining_;
+        byte[] line = new byte[256];
+
+        LineInput(File file, long offset, long length) throws IOException {
+            in_ = new FileInputStream(file);
+            in_.getChannel().position(offset);
+            remaining_ = length;
+        }
+
+        // Reads the next line into the line buffer and returns its length, or -1 when there are no more lines
+        int readLine() throws IOException {
+            int length = 0;
+            boolean any = false;
+            while (true) {
+                if (position_ == limit_) {
+                    if (remaining_ == 0) {
+                        break;
+                    }
+                    limit_ = in_.read(buffer_, 0, (int) Math.min(buffer_.length, remaining_));
+                    position_ = 0;
+                    if (limit_ <= 0) {
+                        limit_ = 0;
+                        remaining_ = 0;
+                        break;
+                    }
+                    remaining_ -= limit_;
+                }
+                any = true;
+                byte b = buffer_[position_++];
+                if (b == '\n') {
+                    break;
+                }
+                if (length == line.length) {
+                    line = Arrays.copyOf(line, length * 2);
+                }
+                line[length++] = b;
+            }
+            if (!any) {
+                return -1;
+            }
+            if (length > 0 && line[length - 1] == '\r') {
+                length--;
+            }
+            return length;
+        }
+
+        void close() throws IOException {
+            in_.close();
+        }
+    }
+}
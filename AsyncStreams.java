@@ -0,0 +1,286 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  AsyncStreams.java
+ *  Purpose: the read-ahead and write-behind streams used by Merge with -async. A ReadAhead stream has a
+ *	thread of its own that reads the next block of the file while the merge works through the block before
+ *	it, and a WriteBehind stream hands each full block to a thread of its own that writes it out while the
+ *	merge fills the next one. Blocks go back and forth through bounded queues, so a stream never holds more
+ *	than a fixed number of blocks and a merge that gets ahead of the disk waits for it. The merge thread
+ *	only compares and copies lines, and the time the merge takes is that of the slower of the two rather
+ *	than both added together.
+ *
+ */
+class AsyncStreams {
+    // Size of a block when no buffer size is given
+    static final int BLOCK = 1 << 18;
+    // Blocks each stream owns: a read stream is double buffered, while a written stream gets a few more to
+    // ride out a slow write
+    static final int READ_BLOCKS = 2;
+    static final int WRITE_BLOCKS = 4;
+
+    // A block of bytes handed between two threads. A length of -1 marks the end of the stream
+    private static class Block {
+        final byte[] data;
+        int length;
+
+        Block(int size) {
+            data = new byte[size];
+        }
+
+        static Block end() {
+            Block block = new Block(0);
+            block.length = -1;
+            return block;
+        }
+    }
+
+    // Reads the stream it wraps on a thread of its own, a block ahead of what has been read from it
+    static class ReadAhead extends InputStream {
+        private final InputStream in_;
+        // Blocks read and waiting to be used, and blocks used and waiting to be filled again
+        private final BlockingQueue<Block> full_ = new ArrayBlockingQueue<>(READ_BLOCKS + 1);
+        private final BlockingQueue<Block> empty_ = new ArrayBlockingQueue<>(READ_BLOCKS);
+        private final Thread thread_;
+        private volatile IOException error_;
+        private Block current_;
+        private int position_;
+
+        // ReadAhead constructor, passed the stream to read and the size of the blocks to read it in
+        ReadAhead(InputStream in, int blockSize) {
+            in_ = in;
+            for (int i = 0; i < READ_BLOCKS; i++) {
+                empty_.add(new Block(blockSize));
+            }
+            thread_ = new Thread(this::fill, "read-ahead");
+            thread_.setDaemon(true);
+            thread_.start();
+        }
+
+        // Runs on the read-ahead thread, filling each empty block until the stream ends or is closed
+        private void fill() {
+            try {
+                int read = 0;
+                while (read >= 0) {
+                    Block block = empty_.take();
+                    int n = 0;
+                    while (n < block.data.length && (read = in_.read(block.data, n, block.data.length - n)) >= 0) {
+                        n += read;
+                    }
+                    if (n > 0) {
+                        block.length = n;
+                        full_.put(block);
+                    }
+                }
+                full_.put(Block.end());
+            }
+            catch (IOException e) {
+                // Passed on to the reader once it has used the blocks read before the error
+                error_ = e;
+                full_.offer(Block.end());
+            }
+            catch (InterruptedException e) {
+                // The stream was closed before it was read to the end
+            }
+            finally {
+                try {
+                    in_.close();
+                }
+                catch (IOException e) {
+                    // Nothing more is read, so only a read error matters
+                }
+            }
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining() <= 0 && !next()) {
+                return -1;
+            }
+            return current_.data[position_++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (remaining() <= 0 && !next()) {
+                return -1;
+            }
+            int n = Math.min(len, remaining());
+            System.arraycopy(current_.data, position_, b, off, n);
+            position_ += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return Math.max(0, remaining());
+        }
+
+        @Override
+        public void close() throws IOException {
+            thread_.interrupt();
+            try {
+                thread_.join();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while closing a read-ahead stream");
+            }
+        }
+
+        private int remaining() {
+            return current_ == null ? 0 : current_.length - position_;
+        }
+
+        // Private method to hand the used block back to be filled and wait for the next one. Returns false at the
+        // end of the stream
+        private boolean next() throws IOException {
+            if (current_ != null) {
+                if (current_.length < 0) {
+                    return false;
+                }
+                empty_.add(current_);
+            }
+            try {
+                current_ = full_.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a read-ahead block");
+            }
+            position_ = 0;
+            if (current_.length < 0) {
+                if (error_ != null) {
+                    throw error_;
+                }
+                return false;
+            }
+            return true;
+        }
+    }
+
+    // Buffers what is written to it in blocks, which a thread of its own writes to the stream it wraps
+    static class WriteBehind extends OutputStream {
+        private final OutputStream out_;
+        // Blocks filled and waiting to be written, and blocks written and waiting to be filled again
+        private final BlockingQueue<Block> full_ = new ArrayBlockingQueue<>(WRITE_BLOCKS + 1);
+        private final BlockingQueue<Block> empty_ = new ArrayBlockingQueue<>(WRITE_BLOCKS);
+        private final Thread thread_;
+        private volatile IOException error_;
+        private Block current_;
+        private boolean closed_ = false;
+
+        // WriteBehind constructor, passed the stream to write and the size of the blocks to write it in
+        WriteBehind(OutputStream out, int blockSize) {
+            out_ = out;
+            current_ = new Block(blockSize);
+            for (int i = 1; i < WRITE_BLOCKS; i++) {
+                empty_.add(new Block(blockSize));
+            }
+            thread_ = new Thread(this::drain, "write-behind");
+            thread_.setDaemon(true);
+            thread_.start();
+        }
+
+        // Runs on the write-behind thread, writing each full block until the end of the stream is handed over.
+        // After an error the blocks are still taken, so the writer is never left waiting, but not written
+        private void drain() {
+            try {
+                while (true) {
+                    Block block = full_.take();
+                    if (block.length < 0) {
+                        return;
+                    }
+                    if (error_ == null) {
+                        try {
+                            out_.write(block.data, 0, block.length);
+                        }
+                        catch (IOException e) {
+                            error_ = e;
+                        }
+                    }
+                    block.length = 0;
+                    empty_.put(block);
+                }
+            }
+            catch (InterruptedException e) {
+                // The stream was abandoned
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (current_.length == current_.data.length) {
+                handOver();
+            }
+            current_.data[current_.length++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (current_.length == current_.data.length) {
+                    handOver();
+                }
+                int n = Math.min(len, current_.data.length - current_.length);
+                System.arraycopy(b, off, current_.data, current_.length, n);
+                current_.length += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Writes out everything handed over so far, then closes the stream it wraps
+        @Override
+        public void close() throws IOException {
+            if (closed_) {
+                return;
+            }
+            closed_ = true;
+            try {
+                if (current_.length > 0) {
+                    full_.put(current_);
+                }
+                full_.put(Block.end());
+                thread_.join();
+            }
+            catch (InterruptedException e) {
+                thread_.interrupt();
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while closing a write-behind stream");
+            }
+            finally {
+                out_.close();
+            }
+            if (error_ != null) {
+                throw error_;
+            }
+        }
+
+        // Private method to hand the full block to the write-behind thread and take an empty one, waiting for one
+        // to be written if none is free
+        private void handOver() throws IOException {
+            if (error_ != null) {
+                throw error_;
+            }
+            try {
+                full_.put(current_);
+                current_ = empty_.take();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted while waiting for a write-behind block");
+            }
+        }
+    }
+}
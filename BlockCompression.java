@@ -0,0 +1,241 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  BlockCompression.java
+ *  Purpose: the block compression used for files of runs with -compress=deflate. Lines are gathered into
+ *	blocks of 64k and each block is compressed on its own with Deflate at its fastest level, then written
+ *	as its compressed length, its length once decompressed and the compressed bytes. Every run starts at
+ *	the start of a block, so the offset and length in a RunIndex still pick out a run, which can be read,
+ *	copied or merged by itself by reading its blocks in order. The codec is recorded in the RunIndex.
+ *	The names of the codecs live here too, including -compress=front, whose records FrontCoding encodes.
+ *
+ */
+class BlockCompression {
+    // Names of the codecs, as given to -compress and recorded in a RunIndex
+    static final String NONE = "none";
+    static final String DEFLATE = "deflate";
+    static final String FRONT = "front";
+    // Bytes of lines gathered into each block before it is compressed
+    static final int BLOCK = 1 << 16;
+
+    // Public method returning whether the named codec stores runs as anything other than plain lines, in which
+    // case a merged run's length is only known once it has been written
+    public static boolean isCompressed(String codec) {
+        return !codec.equals(NONE);
+    }
+
+    // Public method to wrap a stream of the bytes of runs so that what is read from it is decompressed. Only
+    // deflate blocks are decompressed here, while front-coded records are read by FrontCoding
+    public static InputStream decode(String codec, InputStream in) {
+        return codec.equals(DEFLATE) ? new BlockInputStream(in) : in;
+    }
+
+    // Compresses the bytes written to it a block at a time into the stream it wraps
+    static class BlockOutputStream extends OutputStream {
+        private final OutputStream out_;
+        private final Deflater deflater_ = new Deflater(Deflater.BEST_SPEED);
+        private final byte[] block_ = new byte[BLOCK];
+        private int length_ = 0;
+        private byte[] compressed_ = new byte[BLOCK + BLOCK / 8];
+        // Bytes written to the wrapped stream, headers included
+        private long written_ = 0;
+
+        BlockOutputStream(OutputStream out) {
+            out_ = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (length_ == BLOCK) {
+                finishBlock();
+            }
+            block_[length_++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (length_ == BLOCK) {
+                    finishBlock();
+                }
+                int n = Math.min(len, BLOCK - length_);
+                System.arraycopy(b, off, block_, length_, n);
+                length_ += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        // Compresses and writes out the block being filled, so the next byte written starts a new block
+        void finishBlock() throws IOException {
+            if (length_ == 0) {
+                return;
+            }
+            deflater_.reset();
+            deflater_.setInput(block_, 0, length_);
+            deflater_.finish();
+            int n = 0;
+            while (!deflater_.finished()) {
+                if (n == compressed_.length) {
+                    compressed_ = Arrays.copyOf(compressed_, n * 2);
+                }
+                n += deflater_.deflate(compressed_, n, compressed_.length - n);
+            }
+            writeInt(n);
+            writeInt(length_);
+            out_.write(compressed_, 0, n);
+            written_ += 8 + n;
+            length_ = 0;
+        }
+
+        // Returns the bytes written to the wrapped stream so far, which once finishBlock has been called covers
+        // every byte written to this stream
+        long written() {
+            return written_;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out_.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finishBlock();
+            }
+            finally {
+                deflater_.end();
+                out_.close();
+            }
+        }
+
+        private void writeInt(int value) throws IOException {
+            out_.write(value >>> 24);
+            out_.write(value >>> 16);
+            out_.write(value >>> 8);
+            out_.write(value);
+        }
+    }
+
+    // Decompresses the blocks read from the stream it wraps, ending where that stream ends
+    static class BlockInputStream extends InputStream {
+        private final InputStream in_;
+        private Inflater inflater_ = new Inflater();
+        private byte[] compressed_ = new byte[BLOCK];
+        private byte[] block_ = new byte[BLOCK];
+        private int position_ = 0;
+        private int limit_ = 0;
+
+        BlockInputStream(InputStream in) {
+            in_ = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (position_ == limit_ && !nextBlock()) {
+                return -1;
+            }
+            return block_[position_++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (position_ == limit_ && !nextBlock()) {
+                return -1;
+            }
+            int n = Math.min(len, limit_ - position_);
+            System.arraycopy(block_, position_, b, off, n);
+            position_ += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return limit_ - position_;
+        }
+
+        @Override
+        public void close() throws IOException {
+            end();
+            in_.close();
+        }
+
+        // Private method to read and decompress the next block, returning false at the end of the stream
+        private boolean nextBlock() throws IOException {
+            if (inflater_ == null) {
+                return false;
+            }
+            int first = in_.read();
+            if (first < 0) {
+                // The inflater is let go as soon as the stream ends, as a run's stream is often never closed
+                end();
+                return false;
+            }
+            int compressedLength = (first << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            int length = (readByte() << 24) | (readByte() << 16) | (readByte() << 8) | readByte();
+            if (compressedLength < 0 || length < 0) {
+                throw new IOException("corrupt compressed block");
+            }
+            if (compressed_.length < compressedLength) {
+                compressed_ = new byte[compressedLength];
+            }
+            if (block_.length < length) {
+                block_ = new byte[length];
+            }
+            int read = 0;
+            while (read < compressedLength) {
+                int n = in_.read(compressed_, read, compressedLength - read);
+                if (n < 0) {
+                    throw new EOFException("compressed block ends early");
+                }
+                read += n;
+            }
+            inflater_.reset();
+            inflater_.setInput(compressed_, 0, compressedLength);
+            try {
+                int n = 0;
+                while (n < length) {
+                    int inflated = inflater_.inflate(block_, n, length - n);
+                    if (inflated == 0 && (inflater_.finished() || inflater_.needsInput() || inflater_.needsDictionary())) {
+                        throw new IOException("corrupt compressed block");
+                    }
+                    n += inflated;
+                }
+            }
+            catch (DataFormatException e) {
+                throw new IOException("corrupt compressed block", e);
+            }
+            position_ = 0;
+            limit_ = length;
+            return true;
+        }
+
+        private int readByte() throws IOException {
+            int b = in_.read();
+            if (b < 0) {
+                throw new EOFException("compressed block header ends early");
+            }
+            return b;
+        }
+
+        private void end() {
+            if (inflater_ != null) {
+                inflater_.end();
+                inflater_ = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,622 @@
+import java.io.File;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  ByteMerge.java
+ *  Purpose: the -io=nio merge path. Runs are read through FileChannels into large direct buffers and
+ *	every line is handled as a slice of UTF-8 bytes in those buffers: lines are found by scanning for
+ *	'\n', compared byte by byte and copied into a direct output buffer, so nothing is decoded to a String
+ *	or encoded back again. Lines are compared eight bytes at a time, with a fix-up for the one place UTF-8
+ *	byte order differs from String.compareTo, so the order is exactly the one CreateRuns sorted with.
+ *	Compressed runs are decompressed by BlockCompression into the read buffers, and the merged run can be
+ *	compressed on its way out the same way. With -combine each line is copied out of the read buffer into
+ *	a Combiner.Group, which holds it back until the next line shows whether the two combine.
+ *
+ *	When every run is front-coded the tree also keeps, for each loser, the number of leading bytes it
+ *	shares with the line that beat it. A run's next line knows how many bytes it shares with the line
+ *	just written, which beat every loser on the way to the root, so most matches are decided by comparing
+ *	those two numbers, and the rest compare only the bytes after them. The shared length at the root is
+ *	then the front-coded prefix of the line written next.
+ *
+ */
+class ByteMerge {
+    // Size of the direct buffer each run is read through, and of the output buffer, unless a size is given
+    static final int READ_BUFFER = 1 << 18;
+    static final int WRITE_BUFFER = 1 << 20;
+
+    // Public method to merge a group of runs, writing the merged run at the current position of the output
+    // channel. Every buffer is options.bufferSize bytes, or the defaults when it is 0, and with options.async
+    // the runs are read ahead and the output written behind on threads of their own. The merged run is written
+    // with the named codec, and the last merge writes each line as it goes in the sorted file, without the sort
+    // key -key put in front of it and the state -combine keeps after it. The merge is recorded in the merge
+    // metrics in the options. Returns the number of bytes written to the channel
+    public static long merge(List<IndexMerge.Run> group, FileChannel out, String codec, boolean last,
+            SortOptions options) throws IOException {
+        long started = System.nanoTime();
+        boolean stripKeys = last && options.key != null;
+        int bufferSize = options.bufferSize;
+        int n = group.size();
+        Cursor[] cursors = new Cursor[n];
+        try {
+            for (int i = 0; i < n; i++) {
+                IndexMerge.Run run = group.get(i);
+                cursors[i] = new Cursor(run, bufferSize > 0 ? bufferSize : READ_BUFFER, options.async);
+                cursors[i].advance();
+            }
+            // tree[0] holds the winning run, tree[1..n) the loser of the match played at that node, and shared[node]
+            // the bytes that loser shares with the line that beat it, with shared[0] those the winning line shares
+            // with the line written before it
+            int[] tree = new int[Math.max(1, n)];
+            int[] shared = null;
+            boolean frontCoded = n > 0;
+            for (IndexMerge.Run run : group) {
+                frontCoded &= run.codec.equals(BlockCompression.FRONT);
+            }
+            if (frontCoded) {
+                shared = new int[n];
+                tree[0] = build(cursors, tree, shared, 1);
+            }
+            else if (n > 0) {
+                tree[0] = build(cursors, tree, 1);
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize > 0 ? bufferSize : WRITE_BUFFER);
+            WritableByteChannel output = out;
+            BlockCompression.BlockOutputStream blocks = null;
+            if (options.async || codec.equals(BlockCompression.DEFLATE)) {
+                // The output channel is closed by its caller, so closing the streams over it must not close it
+                OutputStream stream = new FilterOutputStream(Channels.newOutputStream(out)) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                };
+                if (options.async) {
+                    stream = new AsyncStreams.WriteBehind(stream, buffer.capacity() / 2);
+                }
+                if (codec.equals(BlockCompression.DEFLATE)) {
+                    blocks = new BlockCompression.BlockOutputStream(stream);
+                    stream = blocks;
+                }
+                output = Channels.newChannel(stream);
+            }
+            FrontCoding.Encoder encoder = codec.equals(BlockCompression.FRONT) ? new FrontCoding.Encoder() : null;
+            Combiner.Group combining = options.combine == null ? null
+                    : new Combiner.Group(options.combine, options.key != null);
+            long written = 0;
+            long recordsRead = 0;
+            long recordsWritten = 0;
+            while (n > 0 && cursors[tree[0]].hasRecord) {
+                Cursor winner = cursors[tree[0]];
+                recordsRead++;
+                if (combining != null) {
+                    // The line held back is only written once the winner is known not to combine with it
+                    byte[] line = winner.line();
+                    int length = winner.end - winner.start;
+                    if (!combining.combine(line, winner.lineOffset, length)) {
+                        recordsWritten += combining.length >= 0 ? 1 : 0;
+                        written += release(combining, buffer, output, encoder, stripKeys, last);
+                        combining.hold(line, winner.lineOffset, length);
+                    }
+                }
+                else {
+                    recordsWritten++;
+                    if (stripKeys) {
+                        winner.skipKey();
+                    }
+                    if (encoder != null) {
+                        written += winner.copyTo(buffer, output, encoder, shared != null ? shared[0] : -1);
+                    }
+                    else {
+                        written += winner.copyTo(buffer, output);
+                    }
+                }
+                winner.advance();
+                if (shared != null) {
+                    replay(cursors, tree, shared, tree[0]);
+                }
+                else {
+                    replay(cursors, tree, tree[0]);
+                }
+            }
+            if (combining != null) {
+                recordsWritten += combining.length >= 0 ? 1 : 0;
+                written += release(combining, buffer, output, encoder, stripKeys, last);
+            }
+            written += flush(buffer, output);
+            // Closing the streams written through, which leaves the caller's channel open
+            if (output != out) {
+                output.close();
+            }
+            if (blocks != null) {
+                written = blocks.written();
+            }
+            if (n > 0) {
+                long comparisons = 0;
+                for (Cursor cursor : cursors) {
+                    comparisons += cursor.comparisons;
+                }
+                options.metrics.merge.merged(n, started, recordsRead, recordsWritten, written, comparisons);
+            }
+            return written;
+        }
+        finally {
+            for (Cursor cursor : cursors) {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+    }
+
+    // Public method to merge a group of runs into a new file written with the named codec, returning the number
+    // of bytes written
+    public static long merge(List<IndexMerge.Run> group, File outputFile, String codec, boolean stripKeys,
+            SortOptions options) throws IOException {
+        FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            return merge(group, out, codec, stripKeys, options);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    // Public method to merge a group of runs into an existing file starting at the given byte position, written
+    // as plain lines so the length of the merged run is known before it is written
+    public static long merge(List<IndexMerge.Run> group, File outputFile, long position, SortOptions options) throws IOException {
+        FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE);
+        try {
+            out.position(position);
+            return merge(group, out, BlockCompression.NONE, false, options);
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    // Private method to play the matches below a node, storing the losers and returning the winning run
+    private static int build(Cursor[] cursors, int[] tree, int node) {
+        if (node >= cursors.length) {
+            return node - cursors.length;
+        }
+        int left = build(cursors, tree, node * 2);
+        int right = build(cursors, tree, node * 2 + 1);
+        if (beats(cursors[left], cursors[right])) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    // Private method to replay the matches from a run's leaf to the root after it has moved to its next line
+    private static void replay(Cursor[] cursors, int[] tree, int run) {
+        int winner = run;
+        for (int node = (run + cursors.length) / 2; node > 0; node /= 2) {
+            if (beats(cursors[tree[node]], cursors[winner])) {
+                int loser = winner;
+                winner = tree[node];
+                tree[node] = loser;
+            }
+        }
+        tree[0] = winner;
+    }
+
+    // Private method to play the matches below a node as build does, storing with each loser the bytes it shares
+    // with the winner of its match
+    private static int build(Cursor[] cursors, int[] tree, int[] shared, int node) {
+        if (node >= cursors.length) {
+            return node - cursors.length;
+        }
+        int left = build(cursors, tree, shared, node * 2);
+        int right = build(cursors, tree, shared, node * 2 + 1);
+        Cursor a = cursors[left];
+        Cursor b = cursors[right];
+        int prefix = a.hasRecord && b.hasRecord ? commonPrefix(a.buffer, a.start, a.end, b.buffer, b.start, b.end, 0) : 0;
+        shared[node] = prefix;
+        if (beats(a, b)) {
+            tree[node] = right;
+            return left;
+        }
+        tree[node] = left;
+        return right;
+    }
+
+    // Private method to replay the matches from a run's leaf to the root after it has moved to its next line,
+    // using the bytes shared with the line just written. The line carried up shares h bytes with the line just
+    // written, as does each loser on the way with its own count, since that line beat every one of them. When
+    // the counts differ the line sharing more is the smaller, and only equal counts compare bytes past them
+    private static void replay(Cursor[] cursors, int[] tree, int[] shared, int run) {
+        int winner = run;
+        int h = cursors[run].shared;
+        for (int node = (run + cursors.length) / 2; node > 0; node /= 2) {
+            int loser = tree[node];
+            Cursor candidate = cursors[winner];
+            Cursor stored = cursors[loser];
+            if (!stored.hasRecord) {
+                continue;
+            }
+            int l = shared[node];
+            if (candidate.hasRecord) {
+                candidate.comparisons++;
+            }
+            if (!candidate.hasRecord || h < l) {
+                // The stored loser wins and carries its own count up, leaving the candidate with the one it had
+                tree[node] = winner;
+                shared[node] = candidate.hasRecord ? h : 0;
+                winner = loser;
+                h = l;
+            }
+            else if (h == l) {
+                int prefix = commonPrefix(candidate.buffer, candidate.start, candidate.end, stored.buffer, stored.start,
+                        stored.end, h);
+                shared[node] = prefix;
+                if (compareAfter(stored, candidate, prefix) <= 0) {
+                    tree[node] = winner;
+                    winner = loser;
+                }
+            }
+            // Otherwise the candidate shares more and wins, and the loser still shares l bytes with it
+        }
+        tree[0] = winner;
+        shared[0] = h;
+    }
+
+    // Private method deciding whether the line of cursor a wins against the line of cursor b. A finished run
+    // always loses
+    private static boolean beats(Cursor a, Cursor b) {
+        if (!a.hasRecord) {
+            return false;
+        }
+        if (!b.hasRecord) {
+            return true;
+        }
+        a.comparisons++;
+        return compare(a.buffer, a.start, a.end, b.buffer, b.start, b.end) <= 0;
+    }
+
+    // Public method to compare two UTF-8 lines held in byte buffers, giving the same order String.compareTo
+    // gives the decoded lines
+    public static int compare(ByteBuffer a, int aStart, int aEnd, ByteBuffer b, int bStart, int bEnd) {
+        int aLength = aEnd - aStart;
+        int bLength = bEnd - bStart;
+        int length = Math.min(aLength, bLength);
+        int i = 0;
+        // Comparing eight bytes at a time, as big-endian longs, until the first difference
+        while (i + 8 <= length) {
+            long x = a.getLong(aStart + i);
+            long y = b.getLong(bStart + i);
+            if (x != y) {
+                i += Long.numberOfLeadingZeros(x ^ y) / 8;
+                return compareBytes(a.get(aStart + i), b.get(bStart + i));
+            }
+            i += 8;
+        }
+        while (i < length) {
+            byte x = a.get(aStart + i);
+            byte y = b.get(bStart + i);
+            if (x != y) {
+                return compareBytes(x, y);
+            }
+            i++;
+        }
+        return aLength - bLength;
+    }
+
+    // Public method returning the number of leading bytes two lines share, comparing only from the byte given,
+    // as every byte before it is already known to be the same in both
+    public static int commonPrefix(ByteBuffer a, int aStart, int aEnd, ByteBuffer b, int bStart, int bEnd, int from) {
+        int length = Math.min(aEnd - aStart, bEnd - bStart);
+        int i = from;
+        while (i + 8 <= length) {
+            long x = a.getLong(aStart + i);
+            long y = b.getLong(bStart + i);
+            if (x != y) {
+                return i + Long.numberOfLeadingZeros(x ^ y) / 8;
+            }
+            i += 8;
+        }
+        while (i < length && a.get(aStart + i) == b.get(bStart + i)) {
+            i++;
+        }
+        return i;
+    }
+
+    // Private method to order the lines of two cursors that share the given number of leading bytes
+    private static int compareAfter(Cursor a, Cursor b, int prefix) {
+        int aLength = a.end - a.start;
+        int bLength = b.end - b.start;
+        if (prefix == aLength || prefix == bLength) {
+            return aLength - bLength;
+        }
+        return compareBytes(a.buffer.get(a.start + prefix), b.buffer.get(b.start + prefix));
+    }
+
+    // Public method to order the first differing bytes of two lines
+    public static int compareBytes(byte x, byte y) {
+        return sortValue(x) - sortValue(y);
+    }
+
+    // Public method returning the value a byte is ordered by. Unsigned byte order is code point order, but
+    // String.compareTo orders UTF-16 chars, where characters above U+FFFF (lead bytes 0xF0 to 0xF4) are
+    // surrogate pairs that sort below U+E000 to U+FFFF (lead bytes 0xEE and 0xEF), so those leads are moved up
+    // to 0xFE and 0xFF, which never appear in UTF-8
+    public static int sortValue(byte b) {
+        int value = b & 0xFF;
+        if (value == 0xEE || value == 0xEF) {
+            value += 0x10;
+        }
+        return value;
+    }
+
+    // Private method to write out the line a Combiner.Group is holding back, if any, as Cursor.copyTo writes a
+    // line, returning the number of bytes the output channel was sent
+    private static long release(Combiner.Group combining, ByteBuffer output, WritableByteChannel out,
+            FrontCoding.Encoder encoder, boolean stripKeys, boolean last) throws IOException {
+        if (combining.length < 0) {
+            return 0;
+        }
+        byte[] line = combining.record;
+        int offset = 0;
+        int length = combining.length;
+        if (stripKeys) {
+            for (int i = 0; i < length; i++) {
+                if (line[i] == KeySpec.SEPARATOR) {
+                    offset = i + 1;
+                    break;
+                }
+            }
+        }
+        if (last) {
+            length = combining.finish(line, offset, length - offset);
+            line = combining.line;
+            offset = 0;
+        }
+        else {
+            length -= offset;
+        }
+        combining.clear();
+        if (encoder != null) {
+            int n = encoder.encode(line, offset, length, -1);
+            return put(encoder.record, 0, n, false, output, out);
+        }
+        return put(line, offset, length, true, output, out);
+    }
+
+    // Private method to put bytes and, if asked, a '\n' into the output buffer, flushing it first if there is no
+    // room, and return the number of bytes the output channel was sent. Bytes larger than the whole buffer are
+    // written straight to the channel
+    private static long put(byte[] bytes, int offset, int length, boolean newline, ByteBuffer output,
+            WritableByteChannel out) throws IOException {
+        int needed = newline ? length + 1 : length;
+        long flushed = 0;
+        if (output.remaining() < needed) {
+            flushed = flush(output, out);
+            if (output.remaining() < needed) {
+                ByteBuffer record = ByteBuffer.wrap(bytes, offset, length);
+                while (record.hasRemaining()) {
+                    flushed += out.write(record);
+                }
+                if (newline) {
+                    output.put((byte) '\n');
+                }
+                return flushed;
+            }
+        }
+        output.put(bytes, offset, length);
+        if (newline) {
+            output.put((byte) '\n');
+        }
+        return flushed;
+    }
+
+    // Private method to write out whatever is waiting in the output buffer, returning the bytes written
+    private static long flush(ByteBuffer buffer, WritableByteChannel out) throws IOException {
+        buffer.flip();
+        long written = buffer.remaining();
+        while (buffer.hasRemaining()) {
+            out.write(buffer);
+        }
+        buffer.clear();
+        return written;
+    }
+
+    // Reads one run through a direct buffer, keeping the current line as the bytes [start, end) of the buffer
+    static class Cursor {
+        private ReadableByteChannel channel_;
+        // Next byte of the run to read, and the byte where the run ends. A compressed run is read decompressed,
+        // so its end is only found when the channel ends
+        private long position_;
+        private long runEnd_;
+        private boolean compressed_;
+        // Records of a front-coded run, rebuilt into a heap buffer of their own in place of the read buffer
+        private FrontCoding.Decoder records_;
+        ByteBuffer buffer;
+        int start;
+        int end;
+        boolean hasRecord;
+        // Leading bytes the line shares with the run's line before it, when the run is front-coded
+        int shared;
+        // Copy of a line in a direct buffer, for encoders that work on byte arrays, and where line() left the line
+        private byte[] lineCopy_ = new byte[256];
+        int lineOffset;
+        // Matches this run's lines have played against another run's line, for SortMetrics
+        long comparisons;
+
+        // Cursor constructor, passed the run and the size of buffer to read it with, and whether to read the run
+        // on a thread of its own a block ahead of the buffer
+        Cursor(IndexMerge.Run run, int bufferSize, boolean readAhead) throws IOException {
+            long length = run.length;
+            FileChannel channel = FileChannel.open(run.file.toPath(), StandardOpenOption.READ);
+            channel.position(run.offset);
+            channel_ = channel;
+            if (readAhead) {
+                channel_ = Channels.newChannel(new AsyncStreams.ReadAhead(Channels.newInputStream(channel),
+                        (int) Math.max(16, Math.min(bufferSize / AsyncStreams.READ_BLOCKS, length))));
+            }
+            position_ = run.offset;
+            runEnd_ = run.offset + length;
+            if (run.codec.equals(BlockCompression.FRONT)) {
+                records_ = new FrontCoding.Decoder(new RunReader.BoundedInputStream(Channels.newInputStream(channel_),
+                        length), (int) Math.min(bufferSize, length));
+                buffer = ByteBuffer.wrap(records_.line);
+                return;
+            }
+            compressed_ = run.codec.equals(BlockCompression.DEFLATE);
+            if (compressed_) {
+                // The run's blocks are decompressed in turn, and the lines take more bytes than the run's length
+                channel_ = Channels.newChannel(BlockCompression.decode(run.codec,
+                        new RunReader.BoundedInputStream(Channels.newInputStream(channel_), length)));
+                runEnd_ = Long.MAX_VALUE;
+                length = bufferSize;
+            }
+            buffer = ByteBuffer.allocateDirect((int) Math.max(16, Math.min(bufferSize, length)));
+            buffer.limit(0);
+            // Starting as if a line ended just before the buffer, so the first advance starts at byte 0
+            end = -1;
+        }
+
+        // Moves to the next line of the run, setting hasRecord to false once the run has been read
+        void advance() throws IOException {
+            if (records_ != null) {
+                int length = records_.next();
+                hasRecord = length >= 0;
+                if (records_.line != buffer.array()) {
+                    buffer = ByteBuffer.wrap(records_.line);
+                }
+                start = 0;
+                end = Math.max(0, length);
+                shared = records_.shared;
+                return;
+            }
+            int from = end + 1;
+            int scan = from;
+            while (true) {
+                int limit = buffer.limit();
+                for (; scan < limit; scan++) {
+                    if (buffer.get(scan) == '\n') {
+                        start = from;
+                        end = scan;
+                        hasRecord = true;
+                        return;
+                    }
+                }
+                if (position_ >= runEnd_) {
+                    // A last line without a '\n' still counts as a line
+                    hasRecord = from < limit;
+                    start = from;
+                    end = limit;
+                    return;
+                }
+                // Moving the partial line to the front of the buffer, growing it if the line fills it, and reading more
+                int partial = limit - from;
+                if (partial == buffer.capacity()) {
+                    ByteBuffer larger = ByteBuffer.allocateDirect(buffer.capacity() * 2);
+                    buffer.position(from);
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+                else {
+                    buffer.position(from);
+                    buffer.compact();
+                }
+                buffer.limit(partial + (int) Math.min(buffer.capacity() - partial, runEnd_ - position_));
+                while (buffer.hasRemaining()) {
+                    int read = channel_.read(buffer);
+                    if (read < 0) {
+                        if (!compressed_) {
+                            throw new IOException("run ends before its indexed length");
+                        }
+                        runEnd_ = position_;
+                        break;
+                    }
+                    position_ += read;
+                }
+                buffer.flip();
+                scan = partial;
+                from = 0;
+            }
+        }
+
+        // Moves the start of the current line past the sort key -key put in front of it, and its separator
+        void skipKey() {
+            for (int i = start; i < end; i++) {
+                if (buffer.get(i) == KeySpec.SEPARATOR) {
+                    start = i + 1;
+                    return;
+                }
+            }
+        }
+
+        // Copies the current line and its '\n' into the output buffer, flushing it first if there is no room,
+        // and returns the number of bytes the output channel was sent by that flush
+        long copyTo(ByteBuffer output, WritableByteChannel out) throws IOException {
+            int length = end - start;
+            long flushed = 0;
+            if (output.remaining() < length + 1) {
+                flushed = flush(output, out);
+                if (output.remaining() < length + 1) {
+                    // A line larger than the whole output buffer is written straight from the input buffer
+                    ByteBuffer line = buffer.duplicate();
+                    line.limit(end).position(start);
+                    while (line.hasRemaining()) {
+                        flushed += out.write(line);
+                    }
+                    output.put((byte) '\n');
+                    return flushed;
+                }
+            }
+            output.put(output.position(), buffer, start, length);
+            output.position(output.position() + length);
+            output.put((byte) '\n');
+            return flushed;
+        }
+
+        // Copies the current line into the output buffer as a front-coded record, sharing the given number of
+        // bytes with the line written before it, or as many as the encoder finds when that is not known
+        long copyTo(ByteBuffer output, WritableByteChannel out, FrontCoding.Encoder encoder, int prefix) throws IOException {
+            byte[] line = line();
+            int n = encoder.encode(line, lineOffset, end - start, prefix);
+            return put(encoder.record, 0, n, false, output, out);
+        }
+
+        // Returns an array holding the current line from lineOffset, which for a direct buffer is a copy
+        byte[] line() {
+            if (buffer.hasArray()) {
+                lineOffset = buffer.arrayOffset() + start;
+                return buffer.array();
+            }
+            int length = end - start;
+            if (lineCopy_.length < length) {
+                lineCopy_ = new byte[Math.max(length, lineCopy_.length * 2)];
+            }
+            buffer.get(start, lineCopy_, 0, length);
+            lineOffset = 0;
+            return lineCopy_;
+        }
+
+        void close() throws IOException {
+            if (records_ != null) {
+                records_.close();
+            }
+            channel_.close();
+        }
+    }
+}
@@ -0,0 +1,272 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  Combiner.java
+ *  Purpose: the -combine mode, which collapses records that belong together into one record as soon as
+ *	they are written next to each other: by CreateRuns as they leave the heap, and by every merge as it
+ *	writes its output. Sorted runs put such records side by side, so a writer only has to hold back the
+ *	last record it was given until the next one shows whether the two combine, and input with many equal
+ *	lines shrinks with every pass instead of being rewritten in full. "distinct" keeps the first record of
+ *	each group, "count" counts them and writes each line after its count as uniq -c does, and any other
+ *	value is the name of a class implementing Combiner.
+ *
+ *	Records belong together when they match up to their first '\u0000': the encoded key with -key, or the
+ *	whole line without it. A combiner may follow a line with a '\u0000' and state of its own, such as the
+ *	count, which then travels with the record through every run. Combiners are shared between threads, so
+ *	they must not keep any state.
+ *
+ */
+interface Combiner {
+    // Returns the record that goes into the runs for a line read from the input
+    default String first(String line) {
+        return line;
+    }
+
+    // Returns the one record that replaces two that belong together, the first of which sorted before the second
+    String combine(String first, String second);
+
+    // Returns the line written to the sorted file for a record
+    default String finish(String record) {
+        return record;
+    }
+
+    // Public method to create the combiner named by -combine: "distinct", "count" or a class name
+    static Combiner forName(String name) {
+        if (name.equals("distinct")) {
+            return new Distinct();
+        }
+        if (name.equals("count")) {
+            return new Count();
+        }
+        try {
+            return (Combiner) Class.forName(name).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("-combine must be distinct, count or the name of a Combiner class");
+        }
+    }
+
+    // Public method returning the name forName creates a combiner from, as recorded in a run index
+    static String name(Combiner combiner) {
+        if (combiner instanceof Distinct) {
+            return "distinct";
+        }
+        if (combiner instanceof Count) {
+            return "count";
+        }
+        return combiner.getClass().getName();
+    }
+
+    // Public method returning whether two records belong together, matching up to their first '\u0000'
+    static boolean sameGroup(String a, String b) {
+        int aEnd = a.indexOf(KeySpec.SEPARATOR);
+        int bEnd = b.indexOf(KeySpec.SEPARATOR);
+        aEnd = aEnd < 0 ? a.length() : aEnd;
+        bEnd = bEnd < 0 ? b.length() : bEnd;
+        return aEnd == bEnd && a.regionMatches(0, b, 0, aEnd);
+    }
+
+    // Public method returning whether two UTF-8 records belong together, matching up to their first 0 byte
+    static boolean sameGroup(byte[] a, int aOffset, int aLength, byte[] b, int bOffset, int bLength) {
+        int aEnd = groupLength(a, aOffset, aLength);
+        int bEnd = groupLength(b, bOffset, bLength);
+        return aEnd == bEnd && Arrays.equals(a, aOffset, aOffset + aEnd, b, bOffset, bOffset + bEnd);
+    }
+
+    // Public method returning the record for a line read from the input, which with -key keeps the key in front
+    static String first(Combiner combiner, String record, boolean keyed) {
+        if (!keyed) {
+            return combiner.first(record);
+        }
+        int separator = record.indexOf(KeySpec.SEPARATOR);
+        return record.substring(0, separator + 1) + combiner.first(record.substring(separator + 1));
+    }
+
+    // Public method returning the one record that replaces two that belong together, which with -key keeps the key
+    // in front
+    static String combine(Combiner combiner, String first, String second, boolean keyed) {
+        if (!keyed) {
+            return combiner.combine(first, second);
+        }
+        int separator = first.indexOf(KeySpec.SEPARATOR);
+        return first.substring(0, separator + 1)
+                + combiner.combine(first.substring(separator + 1), KeySpec.strip(second));
+    }
+
+    private static int groupLength(byte[] record, int offset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (record[offset + i] == KeySpec.SEPARATOR) {
+                return i;
+            }
+        }
+        return length;
+    }
+
+    // Keeps the first record of every group
+    class Distinct implements Combiner {
+        public String combine(String first, String second) {
+            return first;
+        }
+    }
+
+    // Counts the records of every group, keeping the count after the line and writing it in front of the line
+    // in the sorted file, right aligned as uniq -c writes it
+    class Count implements Combiner {
+        public String first(String line) {
+            return line + KeySpec.SEPARATOR + "1";
+        }
+
+        public String combine(String first, String second) {
+            int separator = first.lastIndexOf(KeySpec.SEPARATOR);
+            long count = Long.parseLong(first.substring(separator + 1)) + count(second);
+            return first.substring(0, separator + 1) + count;
+        }
+
+        public String finish(String record) {
+            int separator = record.lastIndexOf(KeySpec.SEPARATOR);
+            return String.format("%7d %s", count(record), record.substring(0, separator));
+        }
+
+        private static long count(String record) {
+            return Long.parseLong(record.substring(record.lastIndexOf(KeySpec.SEPARATOR) + 1));
+        }
+    }
+
+    // Holds back the last record a writer was given until the next one shows whether they combine, working on
+    // the UTF-8 bytes records are written as. Distinct and count records are combined without decoding them
+    class Group {
+        private final Combiner combiner_;
+        private final boolean keyed_;
+        // The record held back, as bytes [0, length) of record, or a length of -1 when none is held
+        byte[] record = new byte[256];
+        int length = -1;
+        // The last record made by first or finish, as bytes [0, n) of line for the n they return
+        byte[] line = new byte[256];
+
+        // Group constructor, passed the combiner and whether the records have -key sort keys in front of them
+        Group(Combiner combiner, boolean keyed) {
+            combiner_ = combiner;
+            keyed_ = keyed;
+        }
+
+        // Combines a record with the one held back if they belong together. Returns false if they do not, when
+        // the record held has to be written before this one is held in its place
+        boolean combine(byte[] bytes, int offset, int count) {
+            if (length < 0 || !sameGroup(record, 0, length, bytes, offset, count)) {
+                return false;
+            }
+            if (combiner_ instanceof Distinct) {
+                return true;
+            }
+            if (combiner_ instanceof Count) {
+                int separator = lastSeparator(record, 0, length);
+                long total = parseCount(record, separator + 1, length)
+                        + parseCount(bytes, lastSeparator(bytes, offset, count) + 1, offset + count);
+                byte[] digits = Long.toString(total).getBytes(StandardCharsets.US_ASCII);
+                ensureRecord(separator + 1 + digits.length);
+                System.arraycopy(digits, 0, record, separator + 1, digits.length);
+                length = separator + 1 + digits.length;
+                return true;
+            }
+            int keyLength = keyLength(record, 0, length);
+            int secondKey = keyLength(bytes, offset, count);
+            String combined = combiner_.combine(decode(record, keyLength, length - keyLength),
+                    decode(bytes, offset + secondKey, count - secondKey));
+            byte[] encoded = combined.getBytes(StandardCharsets.UTF_8);
+            ensureRecord(keyLength + encoded.length);
+            System.arraycopy(encoded, 0, record, keyLength, encoded.length);
+            length = keyLength + encoded.length;
+            return true;
+        }
+
+        // Holds back a copy of a record in place of the one held
+        void hold(byte[] bytes, int offset, int count) {
+            ensureRecord(count);
+            System.arraycopy(bytes, offset, record, 0, count);
+            length = count;
+        }
+
+        // Forgets the record held, once it has been written
+        void clear() {
+            length = -1;
+        }
+
+        // Makes the record for a line read from the input, as the first bytes of the given array, into line and
+        // returns its length
+        int first(byte[] bytes, int count) {
+            if (combiner_ instanceof Distinct) {
+                return copy(bytes, 0, count);
+            }
+            if (combiner_ instanceof Count) {
+                ensureLine(count + 2);
+                System.arraycopy(bytes, 0, line, 0, count);
+                line[count] = KeySpec.SEPARATOR;
+                line[count + 1] = '1';
+                return count + 2;
+            }
+            int keyLength = keyLength(bytes, 0, count);
+            byte[] encoded = combiner_.first(decode(bytes, keyLength, count - keyLength)).getBytes(StandardCharsets.UTF_8);
+            ensureLine(keyLength + encoded.length);
+            System.arraycopy(bytes, 0, line, 0, keyLength);
+            System.arraycopy(encoded, 0, line, keyLength, encoded.length);
+            return keyLength + encoded.length;
+        }
+
+        // Makes the line written to the sorted file for a record that has already lost any -key sort key into
+        // line and returns its length
+        int finish(byte[] bytes, int offset, int count) {
+            if (combiner_ instanceof Distinct) {
+                return copy(bytes, offset, count);
+            }
+            byte[] encoded = combiner_.finish(decode(bytes, offset, count)).getBytes(StandardCharsets.UTF_8);
+            return copy(encoded, 0, encoded.length);
+        }
+
+        // Private method returning the length of the -key sort key and its separator in front of a record
+        private int keyLength(byte[] bytes, int offset, int count) {
+            return keyed_ ? groupLength(bytes, offset, count) + 1 : 0;
+        }
+
+        private int copy(byte[] bytes, int offset, int count) {
+            ensureLine(count);
+            System.arraycopy(bytes, offset, line, 0, count);
+            return count;
+        }
+
+        private void ensureRecord(int size) {
+            if (record.length < size) {
+                record = Arrays.copyOf(record, Math.max(size, record.length * 2));
+            }
+        }
+
+        private void ensureLine(int size) {
+            if (line.length < size) {
+                line = new byte[Math.max(size, line.length * 2)];
+            }
+        }
+
+        private static String decode(byte[] bytes, int offset, int count) {
+            return new String(bytes, offset, count, StandardCharsets.UTF_8);
+        }
+
+        private static int lastSeparator(byte[] bytes, int offset, int count) {
+            for (int i = offset + count - 1; i >= offset; i--) {
+                if (bytes[i] == KeySpec.SEPARATOR) {
+                    return i;
+                }
+            }
+            throw new IllegalStateException("counted record has no count, the runs may not have been created with -combine=count");
+        }
+
+        private static long parseCount(byte[] bytes, int from, int to) {
+            long count = 0;
+            for (int i = from; i < to; i++) {
+                count = count * 10 + (bytes[i] - '0');
+            }
+            return count;
+        }
+    }
+}
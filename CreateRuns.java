@@ -1,7 +1,6 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.PrintWriter;
-import java.io.FileWriter;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
 
 
 /**
@@ -31,149 +30,290 @@ class CreateRuns
         return ((pos + 1) * 2);
     }
     
-    //Insert the input string into the min heap in the correct position (Upheap)
-    public static String[] insert(String[] heap, int pos, String input) {
+    //Compare the lines at two heap positions, using their cached key prefixes and only comparing the full lines on a tie
+    public static int compare(String[] heap, long[] keys, int index1, int index2, RecordComparator comparator) {
+        return comparator.compare(heap[index1], keys[index1], heap[index2], keys[index2]);
+    }
+    
+    //Insert the input string into the min heap in the correct position (Upheap), caching its key prefix alongside
+    public static String[] insert(String[] heap, long[] keys, int pos, String input, RecordComparator comparator) {
         //insert the input into the next available position
         heap[pos] = input;
+        keys[pos] = comparator.prefix(input);
         //Upheap - While input is not root pos and its contents is smaller than the parent
-        while (pos != 0 && heap[pos].compareTo(heap[parent(pos)]) <= 0) {
+        while (pos != 0 && compare(heap, keys, pos, parent(pos), comparator) <= 0) {
             //swap parent with current pos and update pos index
-            heap = swap(heap, parent(pos), pos);
+            heap = swap(heap, keys, parent(pos), pos);
             pos = parent(pos);
         }
         return heap;
     }
     
     //Downheap - Order heap from current position downheap
-    public static String[] downheap(String[] heap, int pos, int notionalCapacity) {
+    public static String[] downheap(String[] heap, long[] keys, int pos, int notionalCapacity, RecordComparator comparator) {
         int smaller;
         //while left child is within notionalCapacity and current pos is not smaller than both its children
-        while ((leftChild(pos) < notionalCapacity) && ((heap[pos].compareTo(heap[leftChild(pos)]) > 0) || (rightChild(pos) < notionalCapacity && (heap[pos].compareTo(heap[rightChild(pos)])) > 0))) {
+        while ((leftChild(pos) < notionalCapacity) && ((compare(heap, keys, pos, leftChild(pos), comparator) > 0) || (rightChild(pos) < notionalCapacity && compare(heap, keys, pos, rightChild(pos), comparator) > 0))) {
             //if there is a rightChild and the rightChild is smaller, get its index, else get the index of leftChild
-            if((rightChild(pos) < notionalCapacity) && heap[leftChild(pos)].compareTo(heap[rightChild(pos)]) > 0) {
+            if((rightChild(pos) < notionalCapacity) && compare(heap, keys, leftChild(pos), rightChild(pos), comparator) > 0) {
                 smaller = rightChild(pos);
             }
             else {
                 smaller = leftChild(pos);
             }
             //swap the pos and child values and update current pos index
-            heap = swap(heap, smaller, pos);
+            heap = swap(heap, keys, smaller, pos);
             pos = smaller;
         }
         return heap;
     }
     
     //Reheap - When the notionalCapacity is 0, re-sort the heap bottom up - Downheap
-    public static String[] reheap(String[] heap) {
+    public static String[] reheap(String[] heap, long[] keys, RecordComparator comparator) {
         //calculate the index of the last node that is a parent
         int mid = ((heap.length / 2) - 1);
         //downheap until everything is re-sorted
         for(int i = mid; i >= 0; i--) {
-            heap = downheap(heap, i, heap.length);
+            heap = downheap(heap, keys, i, heap.length, comparator);
         }
         return heap;
     }
 
-    //Swap two values in the heap
-    public static String[] swap(String[] heap, int index1, int index2) {
+    //Swap two values in the heap, along with their cached key prefixes
+    public static String[] swap(String[] heap, long[] keys, int index1, int index2) {
 		//store index1 in temp variable
         String temp = heap[index1];
+        long tempKey = keys[index1];
 		//swap value at index2 to index1
         heap[index1] = heap[index2];
+        keys[index1] = keys[index2];
 		//put value of index1 from temp to index2
         heap[index2] = temp;
+        keys[index2] = tempKey;
         return heap;
     }
     
+    //Create runs from every line the reader returns using replacement selection with a heap of maxHeapSize
+    //lines ordered by the comparator, writing them to the RunWriter and returning the number of runs created
+    public static int createRuns(RunReader br, RunWriter pw, int maxHeapSize, RecordComparator comparator) throws IOException {
+        int notionalCapacity = maxHeapSize;
+        String[] heap = new String[maxHeapSize];            
+        //the key prefix of every line in the heap, kept at the same index as the line
+        long[] keys = new long[maxHeapSize];
+        int currHeapSize = 0;
+        int runCount = 0;
+        boolean sInserted = false;
+        String currentRun = null;
+        long currentRunKey = 0;
+        String s = br.readRecord();
+		//while there are still lines to be read
+        while (s != null) {
+            //if the number of items in the heap is less that total capacity
+            if(currHeapSize < maxHeapSize) {
+                //call insert method and inc current heap size
+                heap = insert(heap, keys, currHeapSize, s, comparator);
+                currHeapSize++;
+            }
+            //with -combine a record that belongs with the last one output goes straight to the writer, which is
+            //still holding that one back, and never takes a place in the heap
+            else if(currentRun != null && pw.combines() && Combiner.sameGroup(s, currentRun)) {
+                pw.writeRecord(s);
+            }
+            else {
+				//while we have not inserted our read in string
+                while(sInserted == false) {
+                    //if there are no items in the run or the heap root is >= to the last outputted item
+                    if(currentRun == null || comparator.compare(heap[0], keys[0], currentRun, currentRunKey) >= 0 ) {
+                        //Replace - print root value to output file, update currentRun, replace root with input
+                        pw.writeRecord(heap[0]);
+                        currentRun = heap[0];
+                        currentRunKey = keys[0];
+                        heap[0] = s;
+                        keys[0] = comparator.prefix(s);
+                        sInserted = true;
+                        // downheap
+                        heap = downheap(heap, keys, 0, notionalCapacity, comparator);
+                    }
+                    else {
+                        //call remove method
+                        if(notionalCapacity > 1) {
+                            //swap root with the last value in our heap
+                            heap = swap(heap, keys, notionalCapacity-1, 0);
+                            //reduce our notionalCapacity and downheap
+                            notionalCapacity--;
+                            heap = downheap(heap, keys, 0, notionalCapacity, comparator);
+                        }
+                        //if there is 1 item left and we cannot replace
+                        else {
+                            //reset the notionalCapacity and reheap
+                            notionalCapacity = maxHeapSize;
+                            heap = reheap(heap, keys, comparator);
+                            //signify end of tape by closing the run in the index, reset currentRun
+                            pw.endRun();
+                            currentRun = null;    
+                            runCount++;    
+                        }
+                        sInserted = false;
+                    }
+                }
+                sInserted = false;
+            }
+            s = br.readRecord();
+        }
+        //end current run from what is left of the notional heap (which may never have filled), holding back
+        //any line smaller than the last one output, and leaving null behind for every line that is output
+        int remaining = Math.min(notionalCapacity, currHeapSize);
+        while (remaining > 0) {
+            if (currentRun == null || comparator.compare(heap[0], keys[0], currentRun, currentRunKey) >= 0) {
+                pw.writeRecord(heap[0]);
+                currentRun = heap[0];
+                currentRunKey = keys[0];
+                heap[0] = null;
+            }
+            heap = swap(heap, keys, remaining - 1, 0);
+            remaining--;
+            heap = downheap(heap, keys, 0, remaining, comparator);
+        }
+        if (pw.endRun()) {
+            runCount++;
+        }
+        //the lines held back belong to the next run, so gather, sort and output them as the last run
+        int heldBack = 0;
+        for (int i = 0; i < currHeapSize; i++) {
+            if (heap[i] != null) {
+                heap[heldBack++] = heap[i];
+            }
+        }
+        Arrays.sort(heap, 0, heldBack, comparator);
+        for (int i = 0; i < heldBack; i++) {
+            pw.writeRecord(heap[i]);
+        }
+        if (pw.endRun()) {
+            runCount++;
+        }
+        return runCount;
+    }
+    
+    //whether a memory budget goes to an arena: whenever the comparator allows one and -adaptive was not given,
+    //otherwise it goes to a heap of Strings or to the lines AdaptiveRuns holds. the caller sets options.arena
+    //from it before sizing the runs
+    static boolean budgetArena(SortOptions options) {
+        return !options.adaptive && (options.comparator instanceof RecordComparator.Prefix
+                || options.comparator instanceof RecordComparator.Natural);
+    }
+    
+    //size the heap from a memory budget, returning the size in lines, or in bytes when options.arena is set.
+    //neither is ever larger than the input can need
+    static long sizeRuns(File input, long budget, SortOptions options) throws IOException {
+        if(options.adaptive) {
+            return MemoryBudget.adaptiveSize(budget, input);
+        }
+        if(!options.arena) {
+            return MemoryBudget.heapSize(budget, input);
+        }
+        long arenaSize = MemoryBudget.arenaSize(budget, input);
+        //a single arena is one array, while with threads it is split into several
+        if(options.threads == 1) {
+            arenaSize = Math.min(arenaSize, Integer.MAX_VALUE - 16);
+        }
+        return arenaSize;
+    }
+    
+    //create the runs of input in runsFile on the threads and with the heap or arena chosen in the options,
+    //returning the index of the runs written. with -key every line is written with its sort keys in front
+    //what was read, written and compared is added to the createRuns phase of the metrics in the options
+    static RunIndex createRuns(File input, File runsFile, long maxHeapSize, SortOptions options) throws IOException {
+        SortMetrics.Phase phase = options.metrics.createRuns;
+        phase.start();
+        RunIndex index;
+        try {
+            if(options.threads > 1) {
+                //split the input between the worker threads, each creating runs from its own part of the file
+                index = ParallelRuns.createRuns(input, runsFile, maxHeapSize, options);
+            }
+            else {
+                RunWriter pw = new RunWriter(runsFile, false, false, options.compress);
+                pw.configure(options, false);
+                if(options.arena) {
+                    //replacement selection over an arena of bytes, writing the lines out without decoding them
+                    ArenaRuns.createRuns(input, 0, input.length(), pw, (int) maxHeapSize, options);
+                }
+                else {
+                    //create reader to read in input and writer to print output, which also indexes the runs
+                    RunReader br = new RunReader(input);
+                    br.configure(options);
+                    //with -adaptive lines that arrive in order, or in reverse order, skip the heap
+                    RecordComparator.Counting comparator = new RecordComparator.Counting(options.comparator);
+                    if(options.adaptive) {
+                        AdaptiveRuns.createRuns(br, pw, (int) maxHeapSize, comparator);
+                    }
+                    else {
+                        createRuns(br, pw, (int) maxHeapSize, comparator);
+                    }
+                    br.close();
+                    phase.read(br.records(), input.length());
+                    phase.compared(comparator.comparisons());
+                }
+                pw.close();
+                phase.wrote(pw.records(), pw.index().bytes());
+                index = pw.index();
+            }
+            phase.addRuns(index.size());
+        }
+        finally {
+            phase.end();
+        }
+        index.setKeyed(options.key != null);
+        index.setCombine(options.combine);
+        return index;
+    }
+    
     public static void main(String[] args) {
-        if(args.length != 2) {
-            System.err.println("Usage: java CreateRuns <max heap int> <filename>");
+        SortOptions options;
+        try {
+            options = SortOptions.parse(args);
+        }
+        catch(IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            return;
+        }
+        args = options.positional;
+        //with -Xsort the heap size is worked out from the memory budget instead of being given, and the budget
+        //goes to an arena whenever the comparator allows one, so -arena is not given with it
+        if(options.memory > 0 ? args.length != 1 : args.length != 2) {
+            System.err.println("Usage: java CreateRuns [-threads=n] [-comparator=prefix|string|<class>] [-arena|-adaptive] [-compress=none|deflate|front] [-key=fields] [-delimiter=c] [-combine=distinct|count|<class>] [-metrics=text|json] [-jmx] <max heap int|arena bytes> <filename>");
+            System.err.println("   or: java CreateRuns [-threads=n] [-comparator=prefix|string|<class>] [-adaptive] [-compress=none|deflate|front] [-key=fields] [-delimiter=c] [-combine=distinct|count|<class>] [-metrics=text|json] [-jmx] -Xsort=<bytes> <filename>");
             return;
         }
         try {
 			//declare variables
 			//get integer which determines size of heap, if less than 1 then return.
-            int maxHeapSize = Integer.parseInt(args[0]);
+			//with -arena it is the size of the arena in bytes, which may end in k, m or g
+            long maxHeapSize;
+            String filename = args[args.length - 1];
+            if(options.memory > 0) {
+                options.arena = budgetArena(options);
+                maxHeapSize = sizeRuns(new File(filename), MemoryBudget.fit(options.memory), options);
+                System.err.println("Memory budget: " + (options.arena ? "arena of " + maxHeapSize + " bytes"
+                        : "heap of " + maxHeapSize + " lines"));
+            }
+            else {
+                maxHeapSize = options.arena ? SortOptions.parseArenaSize(args[0]) : Integer.parseInt(args[0]);
+            }
 			if(maxHeapSize < 1) {
 				System.err.println("Error: Integer provided must be greater than 0");
 				return;
 			}
-            int notionalCapacity = maxHeapSize;
-            String filename = args[1];
-            String[] heap = new String[maxHeapSize];            
-            int currHeapSize = 0;
-            int runCount = 0;
-            boolean sInserted = false;
-            String currentRun = null;
-			//create reader to read in input and writer to print output
-            BufferedReader br = new BufferedReader(new FileReader(filename));
-            FileWriter fw = new FileWriter(filename + ".runs");
-            PrintWriter pw = new PrintWriter(fw);
-            String s = br.readLine();
-			//while there are still lines to be read
-            while (s != null) {
-                //if the number of items in the heap is less that total capacity
-                if(currHeapSize < maxHeapSize) {
-                    //call insert method and inc current heap size
-                    heap = insert(heap, currHeapSize, s);
-                    currHeapSize++;
-                }
-                else {
-					//while we have not inserted our read in string
-                    while(sInserted == false) {
-                        //if there are no items in the run or the heap root is >= to the last outputted item
-                        if(currentRun == null || heap[0].compareTo(currentRun) >= 0 ) {
-                            //Replace - print root value to output file, update currentRun, replace root with input
-                            pw.println(heap[0]);
-                            currentRun = heap[0];
-                            heap[0] = s;
-                            sInserted = true;
-                            // downheap
-                            heap = downheap(heap, 0, notionalCapacity);
-                        }
-                        else {
-                            //call remove method
-                            if(notionalCapacity > 1) {
-                                //swap root with the last value in our heap
-                                heap = swap(heap, notionalCapacity-1, 0);
-                                //reduce our notionalCapacity and downheap
-                                notionalCapacity--;
-                                heap = downheap(heap, 0, notionalCapacity);
-                            }
-                            //if there is 1 item left and we cannot replace
-                            else {
-                                //reset the notionalCapacity and reheap
-                                notionalCapacity = maxHeapSize;
-                                heap = reheap(heap);
-                                //signify end of tape, reset currentRun
-                                //pw.println("][][][][");        
-                                currentRun = null;    
-                                runCount++;    
-                            }
-                            sInserted = false;
-                        }
-                    }
-                    sInserted = false;
-                }
-                s = br.readLine();
+            //with -jmx the metrics can be watched over JMX while the runs are created
+            if(options.jmx) {
+                options.metrics.register("CreateRuns");
             }
-            //end current run, reset notionalCapacity, downheap, output remaining heap
-            //pw.println("][][][][");
-            notionalCapacity = maxHeapSize;
-            heap = reheap(heap);
-            for(int i = heap.length -1; i >= 0; i--){
-                pw.println(heap[0]);
-                heap[0] = heap[i];
-                notionalCapacity--;
-                heap = downheap(heap, 0, notionalCapacity);
-            }
-            //pw.println("][][][][");
-            runCount++;
-
-            br.close();
-            pw.close();
-            fw.close();
-            System.err.println("Total runs: " + runCount);
+            File runsFile = new File(filename + ".runs");
+            RunIndex index = createRuns(new File(filename), runsFile, maxHeapSize, options);
+            //save the offset and length of every run next to the runs file
+            index.save(RunIndex.indexFile(runsFile));
+            System.err.println("Total runs: " + index.size());
+            options.metrics.print(options.metricsFormat);
         }
         catch(Exception e)
         {
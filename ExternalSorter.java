@@ -0,0 +1,199 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  ExternalSorter.java
+ *  Purpose: sorts a file, or the lines of an Iterator or Stream, with a single call instead of running
+ *	CreateRuns and then Merge. Replacement selection writes its runs to one temporary file and keeps their
+ *	RunIndex in memory, and the runs are then merged straight from that index as Merge -mode=index does,
+ *	so they are written once and never read back only to be distributed over temporary files. Memory is
+ *	sized from the -Xsort budget in the options, or from a quarter of the JVM heap when none was given,
+ *	and the other options (threads, comparator, engine, io) are used as the programs use them, except that
+ *	an Iterator or Stream source is read on one thread into a heap of Strings, ignoring -threads and -arena,
+ *	with its heap no larger than the source when it all fits in the lines read ahead to size it. What the
+ *	sort did is added to options.metrics, which the copies of the options made here share. The sorted
+ *	lines can also be taken as a MergedIterator or a Stream, merged only as they are read, so the first
+ *	lines come as soon as the runs are created, and an Iterator or Stream source is handed to its sink
+ *	the same way without writing a sorted file at all.
+ *
+ */
+public class ExternalSorter {
+    // Number of lines read ahead from an Iterator to estimate how long its lines are
+    private static final int SAMPLE_LINES = 1000;
+
+    // Public method to sort the lines of the file in into the file out
+    public static void sort(Path in, Path out, SortOptions options) throws IOException {
+        SortOptions settings = budgeted(options);
+        File input = in.toFile();
+        File runsFile = File.createTempFile("ExternalSorter-", ".runs");
+        try {
+            settings.arena = CreateRuns.budgetArena(settings);
+            long maxHeapSize = CreateRuns.sizeRuns(input, settings.memory, settings);
+            RunIndex index = CreateRuns.createRuns(input, runsFile, maxHeapSize, settings);
+            merge(runsFile, index, out.toFile(), settings);
+        }
+        finally {
+            runsFile.delete();
+        }
+    }
+
+    // Public method to sort the lines of source, handing them to sink in sorted order. Lines must not contain
+    // '\n', as the runs are stored as lines of text
+    public static void sort(Iterator<String> source, Consumer<String> sink, SortOptions options) throws IOException {
+        MergedIterator sorted = iterator(source, options);
+        try {
+            while (sorted.hasNext()) {
+                sink.accept(sorted.next());
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            sorted.close();
+        }
+    }
+
+    // Public method to sort the lines of a Stream, handing them to sink in sorted order
+    public static void sort(Stream<String> source, Consumer<String> sink, SortOptions options) throws IOException {
+        sort(source.iterator(), sink, options);
+    }
+
+    // Public method to create the runs of the file in and return its sorted lines as they are merged, so the first
+    // of them are ready without the rest being merged. Close the iterator when done with it early
+    public static MergedIterator iterator(Path in, SortOptions options) throws IOException {
+        SortOptions settings = budgeted(options);
+        File input = in.toFile();
+        File runsFile = File.createTempFile("ExternalSorter-", ".runs");
+        try {
+            settings.arena = CreateRuns.budgetArena(settings);
+            long maxHeapSize = CreateRuns.sizeRuns(input, settings.memory, settings);
+            RunIndex index = CreateRuns.createRuns(input, runsFile, maxHeapSize, settings);
+            return open(runsFile, index, settings);
+        }
+        catch (IOException | RuntimeException e) {
+            runsFile.delete();
+            throw e;
+        }
+    }
+
+    // Public method to create the runs of the lines of source and return them sorted as they are merged
+    public static MergedIterator iterator(Iterator<String> source, SortOptions options) throws IOException {
+        SortOptions settings = budgeted(options);
+        File runsFile = File.createTempFile("ExternalSorter-", ".runs");
+        try {
+            return open(runsFile, createRuns(source, runsFile, settings), settings);
+        }
+        catch (IOException | RuntimeException e) {
+            runsFile.delete();
+            throw e;
+        }
+    }
+
+    // Public method to create the runs of the file in and return a Stream of its sorted lines as they are merged,
+    // such as sorted(in, options).limit(10) for the first ten. Close the Stream when done with it early
+    public static Stream<String> sorted(Path in, SortOptions options) throws IOException {
+        return iterator(in, options).stream();
+    }
+
+    // Private method returning a copy of the options with the memory budget worked out
+    private static SortOptions budgeted(SortOptions options) {
+        SortOptions settings = options.copy();
+        long budget = settings.memory > 0 ? settings.memory : Runtime.getRuntime().maxMemory() / 4;
+        settings.memory = MemoryBudget.fit(budget);
+        settings.mode = "index";
+        return settings;
+    }
+
+    // Private method to create runs from the lines of source in runsFile, returning their index. The lines are
+    // taken one at a time from a single source, so -threads and -arena are ignored and the runs come from a heap of
+    // Strings, or from AdaptiveRuns with -adaptive
+    private static RunIndex createRuns(Iterator<String> source, File runsFile, SortOptions settings) throws IOException {
+        // Reading a few lines ahead to size the heap, then creating runs from them followed by the rest
+        List<String> sample = new ArrayList<>();
+        long chars = 0;
+        while (sample.size() < SAMPLE_LINES && source.hasNext()) {
+            String line = source.next();
+            sample.add(line);
+            chars += line.length();
+        }
+        double averageLength = sample.isEmpty() ? 1.0 : (double) chars / sample.size();
+        int maxHeapSize = settings.adaptive ? MemoryBudget.adaptiveSize(settings.memory, averageLength)
+                : MemoryBudget.heapSize(settings.memory, averageLength);
+        if (!source.hasNext()) {
+            // The sample is the whole source, so the heap never needs to hold more than it
+            maxHeapSize = MemoryBudget.fitLines(maxHeapSize, sample.size());
+        }
+        Iterator<String> lines = concat(sample.iterator(), source);
+
+        // The lines are not in a file, so only their count is added to the metrics, not their bytes
+        SortMetrics.Phase phase = settings.metrics.createRuns;
+        phase.start();
+        try {
+            RunWriter pw = new RunWriter(runsFile, false, false, settings.compress);
+            pw.configure(settings, false);
+            RunReader input = new RunReader(lines);
+            input.configure(settings);
+            RecordComparator.Counting comparator = new RecordComparator.Counting(settings.comparator);
+            try {
+                if (settings.adaptive) {
+                    AdaptiveRuns.createRuns(input, pw, maxHeapSize, comparator);
+                }
+                else {
+                    CreateRuns.createRuns(input, pw, maxHeapSize, comparator);
+                }
+            }
+            finally {
+                pw.close();
+            }
+            phase.read(input.records(), 0);
+            phase.compared(comparator.comparisons());
+            phase.wrote(pw.records(), pw.index().bytes());
+            phase.addRuns(pw.index().size());
+            return pw.index();
+        }
+        finally {
+            phase.end();
+        }
+    }
+
+    // Private method to open the lazy merge of the indexed runs of runsFile with the fan-in and buffers the budget
+    // allows for the number of runs, deleting runsFile once it is closed
+    private static MergedIterator open(File runsFile, RunIndex index, SortOptions settings) throws IOException {
+        int k = Merge.sizeMerge(index.size(), 0, settings);
+        return MergedIterator.open(runsFile, index, k, settings).deleteOnClose(runsFile);
+    }
+
+    // Private method to merge the indexed runs of runsFile into sortedFile with the fan-in and buffers the
+    // budget allows for the number of runs, merging lazily up to the bound when -limit or -until is set
+    private static void merge(File runsFile, RunIndex index, File sortedFile, SortOptions settings) throws IOException {
+        int k = Merge.sizeMerge(index.size(), 0, settings);
+        if (settings.limit >= 0 || settings.until != null) {
+            MergedIterator.open(runsFile, index, k, settings).writeTo(sortedFile);
+            return;
+        }
+        IndexMerge.merge(runsFile, index, sortedFile, k, settings);
+    }
+
+    // Private method returning an Iterator over the lines of first and then the lines of second
+    private static Iterator<String> concat(Iterator<String> first, Iterator<String> second) {
+        return new Iterator<String>() {
+            public boolean hasNext() {
+                return first.hasNext() || second.hasNext();
+            }
+
+            public String next() {
+                return first.hasNext() ? first.next() : second.next();
+            }
+        };
+    }
+}
@@ -0,0 +1,138 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  FrontCoding.java
+ *  Purpose: the front-coded run format used with -compress=front. The lines of a run are sorted, so each
+ *	one usually starts with much of the line before it, and each is stored as the number of leading bytes
+ *	it shares with the line before it, the number of bytes that follow and those bytes, the two numbers as
+ *	varints. The first line of every run shares nothing, so each run can still be read by itself. The
+ *	shared length is always the longest the two lines share, which lets ByteMerge skip the bytes a line is
+ *	already known to share with the line merged before it.
+ *
+ */
+class FrontCoding {
+    // Turns lines into front-coded records, one run at a time
+    static class Encoder {
+        private byte[] last_ = new byte[256];
+        private int lastLength_ = -1;
+        // The last record encoded
+        byte[] record = new byte[256];
+
+        // Starts a new run, so the next line shares nothing with the one before it
+        void reset() {
+            lastLength_ = -1;
+        }
+
+        // Encodes a line into record and returns the record's length. The number of bytes the line shares with
+        // the line before it is worked out unless it is given, when shared is 0 or more
+        int encode(byte[] line, int offset, int length, int shared) {
+            if (lastLength_ < 0) {
+                shared = 0;
+            }
+            else if (shared < 0) {
+                int i = Arrays.mismatch(last_, 0, lastLength_, line, offset, offset + length);
+                shared = i < 0 ? length : i;
+            }
+            int suffix = length - shared;
+            if (record.length < suffix + 10) {
+                record = new byte[Math.max(suffix + 10, record.length * 2)];
+            }
+            int n = putVarint(record, 0, shared);
+            n = putVarint(record, n, suffix);
+            System.arraycopy(line, offset + shared, record, n, suffix);
+            if (last_.length < length) {
+                last_ = Arrays.copyOf(last_, Math.max(length, last_.length * 2));
+            }
+            System.arraycopy(line, offset + shared, last_, shared, suffix);
+            lastLength_ = length;
+            return n + suffix;
+        }
+
+        private static int putVarint(byte[] out, int position, int value) {
+            while ((value & ~0x7F) != 0) {
+                out[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            out[position++] = (byte) value;
+            return position;
+        }
+    }
+
+    // Rebuilds the lines of a run from its front-coded records, read through a buffer of its own
+    static class Decoder {
+        private final InputStream in_;
+        private final byte[] buffer_;
+        private int position_ = 0;
+        private int limit_ = 0;
+        // The current line, as bytes [0, length) of line, and the bytes it shares with the line before it
+        byte[] line = new byte[256];
+        int shared;
+        private int length_ = 0;
+
+        Decoder(InputStream in, int bufferSize) {
+            in_ = in;
+            buffer_ = new byte[Math.max(16, bufferSize)];
+        }
+
+        // Reads the next record and returns the length of its line, or -1 at the end of the run. Only the bytes
+        // after the shared ones are written into line, so the array is only replaced when it has to grow
+        int next() throws IOException {
+            if (position_ == limit_ && !fill()) {
+                return -1;
+            }
+            int prefix = readVarint();
+            int suffix = readVarint();
+            if (prefix > length_ || suffix < 0) {
+                throw new IOException("corrupt front-coded record");
+            }
+            int length = prefix + suffix;
+            if (line.length < length) {
+                line = Arrays.copyOf(line, Math.max(length, line.length * 2));
+            }
+            int n = prefix;
+            while (n < length) {
+                if (position_ == limit_ && !fill()) {
+                    throw new EOFException("front-coded record ends early");
+                }
+                int copy = Math.min(length - n, limit_ - position_);
+                System.arraycopy(buffer_, position_, line, n, copy);
+                position_ += copy;
+                n += copy;
+            }
+            shared = prefix;
+            length_ = length;
+            return length;
+        }
+
+        void close() throws IOException {
+            in_.close();
+        }
+
+        private int readVarint() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                if (position_ == limit_ && !fill()) {
+                    throw new EOFException("front-coded record ends early");
+                }
+                byte b = buffer_[position_++];
+                value |= (b & 0x7F) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("corrupt front-coded record");
+        }
+
+        private boolean fill() throws IOException {
+            int n = in_.read(buffer_, 0, buffer_.length);
+            position_ = 0;
+            limit_ = Math.max(0, n);
+            return n > 0;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  IndexMerge.java
+ *  Purpose: merges the runs of a .runs file by opening each run straight from the RunIndex written by
+ *	CreateRuns, used by Merge with -mode=index. When there are no more than k runs they are merged into
+ *	the sorted file in a single pass. Otherwise the smallest runs are merged first, with the first merge
+ *	taking just enough runs that every later merge is a full k-way merge, which is the merge order that
+ *	rewrites the fewest bytes for the given fan-in. With -compress the intermediate runs are written
+ *	compressed, while the sorted file is always written as plain lines, without any -key sort keys or
+ *	-combine state.
+ *
+ */
+class IndexMerge {
+    // A run waiting to be merged: the file it is stored in, its byte offset and length in that file and the
+    // codec it was written with
+    static class Run {
+        final File file;
+        final long offset;
+        final long length;
+        final String codec;
+
+        Run(File file, long offset, long length) {
+            this(file, offset, length, BlockCompression.NONE);
+        }
+
+        Run(File file, long offset, long length, String codec) {
+            this.file = file;
+            this.offset = offset;
+            this.length = length;
+            this.codec = codec;
+        }
+    }
+
+    // Public method to merge every run listed in the index of runsFile into sortedFile, merging at most k
+    // runs at a time with the engine and I/O path chosen in the options. Returns the number of merges made
+    public static int merge(File runsFile, File sortedFile, int k, SortOptions options) throws IOException {
+        return merge(runsFile, RunIndex.load(RunIndex.indexFile(runsFile)), sortedFile, k, options);
+    }
+
+    // Public method to merge the runs of runsFile listed in the given index into sortedFile, timing the merge
+    // phase of the metrics in the options
+    public static int merge(File runsFile, RunIndex index, File sortedFile, int k, SortOptions options) throws IOException {
+        options.metrics.merge.start();
+        try {
+            return mergeRuns(runsFile, index, sortedFile, k, options);
+        }
+        finally {
+            options.metrics.merge.end();
+        }
+    }
+
+    // Private method to merge the runs listed in the index, smallest first, returning the number of merges made
+    private static int mergeRuns(File runsFile, RunIndex index, File sortedFile, int k, SortOptions options) throws IOException {
+        PriorityQueue<Run> runs = queue(runsFile, index);
+        int merges = reduce(runs, runsFile, k, options);
+
+        // The runs left all fit in one final merge straight into the sorted file
+        List<Run> group = new ArrayList<>(runs);
+        mergeGroup(group, sortedFile, BlockCompression.NONE, true, options, k);
+        if (!group.isEmpty()) {
+            merges++;
+        }
+        release(group, runsFile);
+        return merges;
+    }
+
+    // Method returning the runs listed in the index, kept ordered by length so the smallest are always merged first
+    static PriorityQueue<Run> queue(File runsFile, RunIndex index) {
+        List<Run> runs = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            runs.add(new Run(runsFile, index.offset(i), index.length(i), index.codec()));
+        }
+        return queue(runs);
+    }
+
+    // Method returning the given runs kept ordered by length
+    static PriorityQueue<Run> queue(Collection<Run> runs) {
+        PriorityQueue<Run> queue = new PriorityQueue<>(Comparator.comparingLong((Run run) -> run.length));
+        queue.addAll(runs);
+        return queue;
+    }
+
+    // How reduce merges a group of runs into a single run that replaces the contents of a temporary file, returning
+    // the length of the run
+    interface GroupMerge {
+        long merge(List<Run> group, File outputFile) throws IOException;
+    }
+
+    // Method to merge the smallest runs, each merge into a temporary file of its own, until no more than k are left
+    // for a final merge. Returns the number of merges made, which is none when k covers every run
+    static int reduce(PriorityQueue<Run> runs, File runsFile, int k, SortOptions options) throws IOException {
+        return reduce(runs, runsFile, k, options.compress, (group, outputFile) -> mergeGroup(group, outputFile,
+                options.compress, false, options, k));
+    }
+
+    // Method to merge the smallest runs as above, with each group merged by the given GroupMerge into a run written
+    // with the named codec
+    static int reduce(PriorityQueue<Run> runs, File runsFile, int k, String codec, GroupMerge merge) throws IOException {
+        int merges = 0;
+        // The first merge takes only enough runs that the ones left can be finished with full k-way merges
+        int groupSize = (runs.size() - 2) % (k - 1) + 2;
+        while (runs.size() > k) {
+            List<Run> group = new ArrayList<>();
+            while (group.size() < groupSize) {
+                group.add(runs.poll());
+            }
+            // Each intermediate merge writes a single run to a temporary file of its own
+            File temp = File.createTempFile("Merge-", ".txt");
+            temp.deleteOnExit();
+            long length = merge.merge(group, temp);
+            release(group, runsFile);
+            runs.add(new Run(temp, 0, length, codec));
+            merges++;
+            groupSize = k;
+        }
+        return merges;
+    }
+
+    // Public method returning the number of merges needed for the given number of runs: the first merge takes
+    // between 2 and k runs and every later merge takes k, each leaving one run in place of those it took
+    public static int plannedMerges(int runs, int k) {
+        if (runs <= 1) {
+            // A single run is still copied to the sorted file by one merge
+            return runs;
+        }
+        return (runs - 1 + k - 2) / (k - 1);
+    }
+
+    // Private method to merge a group of runs into one run, written with the named codec, that replaces the
+    // contents of the output file, returning the length of the run. The last merge writes the lines as they go in
+    // the sorted file, without their -key sort keys and -combine state
+    private static long mergeGroup(List<Run> group, File outputFile, String codec, boolean last, SortOptions options,
+            int k) throws IOException {
+        options.metrics.merge.read(0, length(group));
+        // With -threads the last merge is split by key range between the threads
+        int partitions = last ? RangeMerge.partitions(group, options) : 1;
+        if (partitions > 1) {
+            return RangeMerge.merge(group, outputFile, partitions, options, k);
+        }
+        if (options.io.equals("nio")) {
+            return ByteMerge.merge(group, outputFile, codec, last, options);
+        }
+        MergeEngine mergeEngine = Merge.createEngine(options, k);
+        for (Run run : group) {
+            mergeEngine.addReader(new RunReader(run.file, run.offset, run.length, options.bufferSize,
+                    options.async, run.codec));
+        }
+        RunWriter writer = new RunWriter(outputFile, false, options.async, codec);
+        writer.configure(options, last);
+        mergeEngine.createPass(writer);
+        writer.close();
+        return writer.position();
+    }
+
+    // Method returning the total byte length of a group of runs
+    static long length(List<Run> group) {
+        long length = 0;
+        for (Run run : group) {
+            length += run.length;
+        }
+        return length;
+    }
+
+    // Method to delete the temporary files of runs that have been merged, keeping the original runs
+    static void release(List<Run> group, File runsFile) {
+        for (Run run : group) {
+            if (!run.file.equals(runsFile)) {
+                run.file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,325 @@
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  KeySpec.java
+ *  Purpose: the sort keys chosen with -key, which sort lines by some of their delimited fields rather than
+ *	by the whole line. As CreateRuns reads each line it parses the key fields once and puts them in front
+ *	of the line, encoded so that comparing the encoded lines as Strings, or as UTF-8 bytes, orders them by
+ *	their keys, followed by a '\u0000' separator. Every heap, arena and merge then sorts the lines exactly
+ *	as it always has, comparing the key bytes and their cached prefixes without parsing anything again, and
+ *	the last merge writes each line without what it finds up to the first '\u0000'. Lines whose keys are
+ *	equal are left in the order of the lines themselves.
+ *
+ *	Each field is encoded as bytes and each byte of a field that is not an ascending string is written as
+ *	one of the chars U+0100 to U+01FF, which keep their order whether compared as chars or as UTF-8 bytes:
+ *	  string  - the field's own UTF-8 bytes followed by a 0x01 terminator, with the bytes 0x00 to 0x02 escaped
+ *	            as 0x02 and the byte plus 3, so no field is the start of a longer one and the key holds no 0x00
+ *	  long    - a 0x01 marker and the 8 bytes of the number with its sign bit flipped, or a lone 0x00 marker
+ *	            when the field is missing or not a number, which sorts it first
+ *	  double  - as long, from the bits of the double, with every bit flipped for negative numbers
+ *	  timestamp - as long, from the ISO-8601 date or date-time's seconds since the epoch, followed by 4 bytes
+ *	            of nanoseconds. A date-time without an offset is taken to be UTC
+ *	A descending field has every byte of its encoding flipped, which reverses its order. A descending string
+ *	is escaped in the same way but from the byte order values ByteMerge compares, then flipped.
+ *
+ */
+class KeySpec {
+    // The types a field can be sorted as
+    static final String STRING = "string";
+    static final String LONG = "long";
+    static final String DOUBLE = "double";
+    static final String TIMESTAMP = "timestamp";
+    // The separator between the encoded key and the line
+    static final char SEPARATOR = '\u0000';
+
+    // A key field: its column, counted from 1, its type and whether it is sorted in descending order
+    private static class Field {
+        final int column;
+        final String type;
+        final boolean descending;
+
+        Field(int column, String type, boolean descending) {
+            this.column = column;
+            this.type = type;
+            this.descending = descending;
+        }
+    }
+
+    private final byte delimiter_;
+    private final Field[] fields_;
+
+    private KeySpec(byte delimiter, Field[] fields) {
+        delimiter_ = delimiter;
+        fields_ = fields;
+    }
+
+    // Public method to read the fields given with -key, "column[:type][:asc|desc]" separated by commas, with the
+    // columns split at the given delimiter: a single ASCII char, or "tab"
+    public static KeySpec parse(String spec, String delimiter) {
+        if (delimiter.equals("tab") || delimiter.equals("\\t")) {
+            delimiter = "\t";
+        }
+        if (delimiter.length() != 1 || delimiter.charAt(0) >= 0x80 || delimiter.charAt(0) == '\n'
+                || delimiter.charAt(0) == '\r') {
+            throw new IllegalArgumentException("-delimiter must be a single ASCII char or tab");
+        }
+        List<Field> fields = new ArrayList<>();
+        for (String field : spec.split(",")) {
+            String[] parts = field.split(":");
+            int column;
+            try {
+                column = Integer.parseInt(parts[0].trim());
+            }
+            catch (NumberFormatException e) {
+                column = 0;
+            }
+            if (column < 1 || parts.length > 3) {
+                throw new IllegalArgumentException("-key must be a list of column[:string|long|double|timestamp][:asc|desc], columns counted from 1: " + field);
+            }
+            String type = STRING;
+            boolean descending = false;
+            for (int i = 1; i < parts.length; i++) {
+                String part = parts[i].trim();
+                if (part.equals(STRING) || part.equals(LONG) || part.equals(DOUBLE) || part.equals(TIMESTAMP)) {
+                    type = part;
+                }
+                else if (part.equals("asc") || part.equals("desc")) {
+                    descending = part.equals("desc");
+                }
+                else {
+                    throw new IllegalArgumentException("-key field type must be string, long, double or timestamp, and order asc or desc: " + field);
+                }
+            }
+            fields.add(new Field(column, type, descending));
+        }
+        return new KeySpec((byte) delimiter.charAt(0), fields.toArray(new Field[0]));
+    }
+
+    // Public method returning an encoder that puts the keys in front of lines. Each thread needs its own
+    public Encoder encoder() {
+        return new Encoder();
+    }
+
+    // Public method returning the line a keyed line was made from, or the line itself if it has no key
+    public static String strip(String line) {
+        int separator = line.indexOf(SEPARATOR);
+        return separator < 0 ? line : line.substring(separator + 1);
+    }
+
+    // Puts the encoded keys in front of lines, reusing its buffers from line to line
+    class Encoder {
+        // The last keyed line, as bytes [0, length) of line
+        byte[] line = new byte[256];
+        private int length_;
+        private int[] starts_ = new int[16];
+        private int[] ends_ = new int[16];
+
+        // Encodes the keys of a UTF-8 line and writes them followed by the separator and the line into line,
+        // returning the length of the keyed line
+        int encode(byte[] source, int length) {
+            int columns = split(source, length);
+            length_ = 0;
+            for (Field field : fields_) {
+                int start = 0;
+                int end = 0;
+                boolean present = field.column <= columns;
+                if (present) {
+                    start = starts_[field.column - 1];
+                    end = ends_[field.column - 1];
+                }
+                switch (field.type) {
+                    case STRING:
+                        if (field.descending) {
+                            putDescendingString(source, start, end);
+                        }
+                        else {
+                            putString(source, start, end);
+                        }
+                        break;
+                    case LONG:
+                        putNumber(present ? parseLong(source, start, end) : null, field.descending);
+                        break;
+                    case DOUBLE:
+                        putNumber(present ? parseDouble(source, start, end) : null, field.descending);
+                        break;
+                    default:
+                        putTimestamp(present ? parseTimestamp(source, start, end) : null, field.descending);
+                        break;
+                }
+            }
+            ensure(length + 1);
+            line[length_++] = (byte) SEPARATOR;
+            System.arraycopy(source, 0, line, length_, length);
+            length_ += length;
+            return length_;
+        }
+
+        // Encodes the keys of a line and returns the keyed line
+        String encode(String source) {
+            byte[] bytes = source.getBytes(StandardCharsets.UTF_8);
+            int length = encode(bytes, bytes.length);
+            return new String(line, 0, length, StandardCharsets.UTF_8);
+        }
+
+        // Private method to find where each column of a line starts and ends, returning the number of columns
+        private int split(byte[] source, int length) {
+            int columns = 0;
+            int start = 0;
+            for (int i = 0; i <= length; i++) {
+                if (i == length || source[i] == delimiter_) {
+                    if (columns == starts_.length) {
+                        starts_ = Arrays.copyOf(starts_, columns * 2);
+                        ends_ = Arrays.copyOf(ends_, columns * 2);
+                    }
+                    starts_[columns] = start;
+                    ends_[columns] = i;
+                    columns++;
+                    start = i + 1;
+                }
+            }
+            return columns;
+        }
+
+        private void putString(byte[] source, int start, int end) {
+            ensure(2 * (end - start) + 1);
+            for (int i = start; i < end; i++) {
+                byte b = source[i];
+                if (b >= 0 && b <= 0x02) {
+                    line[length_++] = 0x02;
+                    line[length_++] = (byte) (b + 3);
+                }
+                else {
+                    line[length_++] = b;
+                }
+            }
+            line[length_++] = 0x01;
+        }
+
+        private void putDescendingString(byte[] source, int start, int end) {
+            ensure(4 * (end - start) + 2);
+            for (int i = start; i < end; i++) {
+                int value = ByteMerge.sortValue(source[i]);
+                if (value <= 0x01) {
+                    putByte(0xFF - 0x01);
+                    putByte(0xFF - (value + 1));
+                }
+                else {
+                    putByte(0xFF - value);
+                }
+            }
+            putByte(0xFF);
+        }
+
+        // Private method to write the marker and 8 bytes of an encoded number, or the marker of a missing one.
+        // The 8 bytes are already in an order where a smaller value is a smaller unsigned long
+        private void putNumber(Long bits, boolean descending) {
+            int flip = descending ? 0xFF : 0;
+            if (bits == null) {
+                putByte(flip);
+                return;
+            }
+            putByte(0x01 ^ flip);
+            putLong(bits, flip);
+        }
+
+        private void putTimestamp(Instant time, boolean descending) {
+            int flip = descending ? 0xFF : 0;
+            if (time == null) {
+                putByte(flip);
+                return;
+            }
+            putByte(0x01 ^ flip);
+            putLong(time.getEpochSecond() ^ Long.MIN_VALUE, flip);
+            int nanos = time.getNano();
+            for (int shift = 24; shift >= 0; shift -= 8) {
+                putByte(((nanos >>> shift) & 0xFF) ^ flip);
+            }
+        }
+
+        private void putLong(long bits, int flip) {
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                putByte((int) ((bits >>> shift) & 0xFF) ^ flip);
+            }
+        }
+
+        // Private method to write a byte of an encoded field as one of the chars U+0100 to U+01FF, in UTF-8
+        private void putByte(int value) {
+            ensure(2);
+            line[length_++] = (byte) (0xC4 | (value >> 6));
+            line[length_++] = (byte) (0x80 | (value & 0x3F));
+        }
+
+        private void ensure(int extra) {
+            if (line.length < length_ + extra) {
+                line = Arrays.copyOf(line, Math.max(length_ + extra, line.length * 2));
+            }
+        }
+    }
+
+    // Private method to read a whole number, returning it with its sign bit flipped, or null if it is not one
+    private static Long parseLong(byte[] source, int start, int end) {
+        while (start < end && source[start] == ' ') {
+            start++;
+        }
+        while (end > start && source[end - 1] == ' ') {
+            end--;
+        }
+        try {
+            return Long.parseLong(new String(source, start, end - start, StandardCharsets.ISO_8859_1)) ^ Long.MIN_VALUE;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Private method to read a number, returning its bits in an order where a smaller number is a smaller
+    // unsigned long, or null if it is not a number. Every NaN is encoded the same, after infinity
+    private static Long parseDouble(byte[] source, int start, int end) {
+        String text = new String(source, start, end - start, StandardCharsets.ISO_8859_1).trim();
+        if (text.isEmpty()) {
+            return null;
+        }
+        try {
+            long bits = Double.doubleToLongBits(Double.parseDouble(text));
+            return bits < 0 ? ~bits : bits ^ Long.MIN_VALUE;
+        }
+        catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    // Private method to read an ISO-8601 date-time with or without an offset, or a date, or null if it is neither.
+    // A space may stand in for the 'T' between the date and the time
+    private static Instant parseTimestamp(byte[] source, int start, int end) {
+        String text = new String(source, start, end - start, StandardCharsets.ISO_8859_1).trim();
+        if (text.isEmpty()) {
+            return null;
+        }
+        if (text.length() > 10 && text.charAt(10) == ' ') {
+            text = text.substring(0, 10) + 'T' + text.substring(11);
+        }
+        try {
+            if (text.length() <= 10) {
+                return LocalDate.parse(text).atStartOfDay().toInstant(ZoneOffset.UTC);
+            }
+            if (text.endsWith("Z") || text.lastIndexOf('+') > 10 || text.lastIndexOf('-') > 10) {
+                return OffsetDateTime.parse(text).toInstant();
+            }
+            return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC);
+        }
+        catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+import java.io.IOException;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  LoserTree.java
+ *  Purpose: a tournament (loser) tree merge engine, selectable in place of MinHeap with -engine=loser.
+ *	Each internal node stores the index of the stream that lost the match played there, and the overall
+ *	winner is kept at position 0. After the winning line is printed only the path from that stream's leaf
+ *	to the root is replayed, which costs one comparison per level and moves only int indexes, where
+ *	MinHeap's downheap needs two comparisons per level and swaps three arrays in lockstep.
+ *
+ */
+class LoserTree implements MergeEngine {
+    // Maximum number of input files and the number added so far
+    private int capacity_;
+    private int currentCapacity_ = 0;
+    // tree_[0] holds the winning stream, tree_[1..n) hold the loser of the match played at that node
+    private int[] tree_;
+    // Current line, its key prefix, reader and whether the stream still belongs to the current pass, indexed
+    // by stream
+    private String[] data_;
+    private long[] keys_;
+    private RunReader[] readers_;
+    private boolean[] active_;
+
+    // Order the lines are merged in
+    private RecordComparator comparator_;
+    // Comparisons made so far, and the metrics phase each pass is recorded in, or null
+    private long comparisons_ = 0;
+    private SortMetrics.Phase metrics_;
+    // The streams in the current pass, when it started, the comparisons made before it and the lines it has read
+    private int fanIn_ = 0;
+    private long started_;
+    private long passComparisons_;
+    private long recordsRead_;
+
+    // LoserTree constructor, passed the maximum number of input files and the order to merge them in
+    public LoserTree(int capacity, RecordComparator comparator) {
+        this(capacity, comparator, null);
+    }
+
+    // LoserTree constructor as above, which records each pass as a merge in the given metrics phase
+    public LoserTree(int capacity, RecordComparator comparator, SortMetrics.Phase metrics) {
+        capacity_ = capacity;
+        comparator_ = comparator;
+        metrics_ = metrics;
+        tree_ = new int[capacity];
+        data_ = new String[capacity];
+        keys_ = new long[capacity];
+        readers_ = new RunReader[capacity];
+        active_ = new boolean[capacity];
+    }
+
+    // Public method to add a stream of runs to the tree, reading its first line ready for the first pass
+    public void addReader(RunReader reader) throws IOException {
+        if (currentCapacity_ == capacity_) {
+            throw new IllegalStateException("LoserTree is full");
+        }
+        readers_[currentCapacity_] = reader;
+        data_[currentCapacity_] = reader.readRecord();
+        if (data_[currentCapacity_] != null) {
+            keys_[currentCapacity_] = comparator_.prefix(data_[currentCapacity_]);
+        }
+        currentCapacity_++;
+    }
+
+    // Public method returning true once every line of every stream has been read and printed
+    public boolean isExhausted() {
+        for (int i = 0; i < currentCapacity_; i++) {
+            if (data_[i] != null) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Public method to merge the next run of every stream into one run written to the given writer
+    public void createPass(RunWriter writer) throws IOException {
+        if (currentCapacity_ == 0) {
+            return;
+        }
+        long recordsWritten = writer.records();
+        long position = writer.position();
+        startPass();
+        String record;
+        while ((record = next()) != null) {
+            writer.writeRecord(record);
+        }
+        writer.endRun();
+        if (metrics_ != null && fanIn_ > 0) {
+            metrics_.merged(fanIn_, started_, recordsRead_, writer.records() - recordsWritten,
+                    writer.position() - position, comparisons_ - passComparisons_);
+        }
+    }
+
+    // Public method to start a pass over the next run of every stream, whose lines are then taken with next
+    public void startPass() {
+        // Every stream that still has data takes part in this pass, then the tournament is played once
+        fanIn_ = 0;
+        for (int i = 0; i < currentCapacity_; i++) {
+            active_[i] = data_[i] != null;
+            fanIn_ += active_[i] ? 1 : 0;
+        }
+        started_ = System.nanoTime();
+        passComparisons_ = comparisons_;
+        recordsRead_ = 0;
+        if (currentCapacity_ > 0) {
+            tree_[0] = build(1);
+        }
+    }
+
+    // Public method returning the winner of the pass and replaying its stream's matches, or null once the winner
+    // itself has dropped out of the pass
+    public String next() throws IOException {
+        if (currentCapacity_ == 0 || !active_[tree_[0]]) {
+            return null;
+        }
+        int winner = tree_[0];
+        String printed = data_[winner];
+        recordsRead_++;
+
+        // A stream leaves the pass when it runs out of lines or reaches the end of its indexed run, as MinHeap's
+        // streams do, without comparing the next line with the one just printed
+        String next = readers_[winner].readRecord();
+        boolean runEnded = false;
+        if (next == null && readers_[winner].nextRun()) {
+            next = readers_[winner].readRecord();
+            runEnded = true;
+        }
+        data_[winner] = next;
+        if (next == null) {
+            readers_[winner].close();
+            active_[winner] = false;
+        }
+        else {
+            keys_[winner] = comparator_.prefix(next);
+            active_[winner] = !runEnded;
+        }
+        replay(winner);
+        return printed;
+    }
+
+    // Public method to close every stream that still has data, leaving none for later passes
+    public void close() throws IOException {
+        for (int i = 0; i < currentCapacity_; i++) {
+            if (data_[i] != null) {
+                data_[i] = null;
+                active_[i] = false;
+                readers_[i].close();
+            }
+        }
+    }
+
+    public long comparisons() {
+        return comparisons_;
+    }
+
+    // Private method to play the matches below a node, storing the losers and returning the winning stream
+    private int build(int node) {
+        // Leaves are numbered from currentCapacity_ upwards and map directly to a stream
+        if (node >= currentCapacity_) {
+            return node - currentCapacity_;
+        }
+        int left = build(node * 2);
+        int right = build(node * 2 + 1);
+        if (beats(left, right)) {
+            tree_[node] = right;
+            return left;
+        }
+        tree_[node] = left;
+        return right;
+    }
+
+    // Private method to replay the matches from a stream's leaf to the root after its line has changed
+    private void replay(int stream) {
+        int winner = stream;
+        for (int node = (stream + currentCapacity_) / 2; node > 0; node /= 2) {
+            // The stored loser only moves up if it beats the stream coming up from below
+            if (beats(tree_[node], winner)) {
+                int loser = winner;
+                winner = tree_[node];
+                tree_[node] = loser;
+            }
+        }
+        tree_[0] = winner;
+    }
+
+    // Private method deciding whether stream a wins against stream b. Streams outside the pass always lose,
+    // so only matches between two active streams need to compare their lines
+    private boolean beats(int a, int b) {
+        if (!active_[a]) {
+            return false;
+        }
+        if (!active_[b]) {
+            return true;
+        }
+        return compare(data_[a], keys_[a], data_[b], keys_[b]) <= 0;
+    }
+
+    // Private method to compare two lines given their key prefixes, counting the comparison
+    private int compare(String a, long aKey, String b, long bKey) {
+        comparisons_++;
+        return comparator_.compare(a, aKey, b, bKey);
+    }
+}
@@ -0,0 +1,191 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  MemoryBudget.java
+ *  Purpose: turns the byte budget given with -Xsort into the sizes each phase works with. CreateRuns gets
+ *	the size of its arena, or a heap size in lines estimated from the average line length of the input,
+ *	and Merge gets the fan-in k and the size of the buffer each run is read through. The fan-in is the
+ *	smallest k that still finishes in the fewest passes the budget allows, so the budget left over goes
+ *	to larger buffers rather than to more streams. However large the budget, k is also kept low enough
+ *	that the merges never hold more than MAX_OPEN_FILES files open. The sizes for CreateRuns are also cut
+ *	down to what the input can need, so a large budget over a small file does not allocate the budget.
+ *
+ */
+class MemoryBudget {
+    // Smallest read buffer a stream is given while the budget allows it, as smaller reads spend their time seeking
+    static final int MIN_BUFFER = 1 << 16;
+    // Largest buffer a stream is given, past which larger reads are no faster
+    static final int MAX_BUFFER = 1 << 24;
+    // Memory kept back from the budget for the input and output buffers and the last line of CreateRuns
+    static final int RESERVED = 1 << 18;
+    // Bytes a line costs ArenaRuns beyond its own bytes: its 8 byte header in the arena, and its 12 bytes of
+    // heap_ and keys_ doubled, as those arrays grow by doubling
+    static final int ARENA_HEADER = 8;
+    static final int ARENA_SLOT = 24;
+    // Bytes a line costs the heap of Strings beyond two bytes a char: the String and its array, the heap slot
+    // and the cached key prefix
+    static final int STRING_OVERHEAD = 56;
+    // Bytes a line costs CreateRuns -adaptive on top of that, for its slot and key prefix in the deque
+    static final int ADAPTIVE_SLOT = 12;
+    // Smallest arena the budget gives, and twice the bytes of every line of the input with its header are the
+    // most, which leaves room for -key sort keys and the arena's slack
+    static final int MIN_ARENA = 1 << 20;
+    // Most files the merges may hold open at once, well under the 1024 descriptors a process is given by default,
+    // as the JVM keeps some of its own open
+    static final int MAX_OPEN_FILES = 512;
+
+    // Public method to limit a budget to what the JVM can give, printing a warning when it has to be reduced
+    public static long fit(long budget) {
+        long heap = Runtime.getRuntime().maxMemory();
+        long usable = heap - heap / 8;
+        if (budget > usable) {
+            System.err.println("Warning: -Xsort=" + budget + " is more than the JVM heap allows, using " + usable
+                    + " bytes (raise it with java -Xmx)");
+            return usable;
+        }
+        return budget;
+    }
+
+    // Public method returning the total arena size for CreateRuns -arena, from the budget and the average
+    // length of the lines in the input. With several threads the arena is split between them
+    public static long arenaSize(long budget, File input) throws IOException {
+        double line = averageLineLength(input);
+        long available = Math.max(1 << 10, budget - RESERVED);
+        long size = (long) (available * (ARENA_HEADER + line) / (ARENA_HEADER + ARENA_SLOT + line));
+        // However large the budget, the arena never needs to hold more than every line of the input at once
+        long lines = lines(input.length(), line);
+        return Math.min(size, Math.max(MIN_ARENA, 2 * (input.length() + lines * ARENA_HEADER)));
+    }
+
+    // Public method returning the heap size in lines for CreateRuns without an arena, from the budget and the
+    // average length of the lines in the input
+    public static int heapSize(long budget, File input) throws IOException {
+        double line = averageLineLength(input);
+        return fitLines(heapSize(budget, line), lines(input.length(), line));
+    }
+
+    // Public method returning the heap size in lines for the given average line length
+    public static int heapSize(long budget, double line) {
+        return heapSize(budget, line, STRING_OVERHEAD);
+    }
+
+    // Public method returning the number of lines CreateRuns -adaptive may hold, from the budget and the average
+    // length of the lines in the input
+    public static int adaptiveSize(long budget, File input) throws IOException {
+        double line = averageLineLength(input);
+        return fitLines(adaptiveSize(budget, line), lines(input.length(), line));
+    }
+
+    // Public method returning the number of lines CreateRuns -adaptive may hold for the given average line length
+    public static int adaptiveSize(long budget, double line) {
+        return heapSize(budget, line, STRING_OVERHEAD + ADAPTIVE_SLOT);
+    }
+
+    // Public method returning a heap size in lines cut down to what an input of the given number of lines can need
+    public static int fitLines(int size, long lines) {
+        return (int) Math.max(1, Math.min(size, lines));
+    }
+
+    // Private method returning about how many lines a file of the given length holds when they are of the given
+    // average length, doubled in case the start of the file, which the average was taken from, is not typical
+    private static long lines(long length, double line) {
+        return 2 * (long) (length / (line + 1)) + 1;
+    }
+
+    // Private method returning the number of lines of the given average length that fit in the budget when each
+    // costs overhead bytes on top of two bytes a char
+    private static int heapSize(long budget, double line, int overhead) {
+        long lines = (long) (Math.max(1 << 10, budget - RESERVED) / (overhead + 2 * line));
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE - 16, lines));
+    }
+
+    // Public method returning the fan-in for merging the given number of runs, with up to merges merges
+    // running at once. Each merge needs a buffer for each of its k runs and one for its output, so k is limited
+    // by how many buffers of MIN_BUFFER bytes fit in its share of the budget, and by limit, the largest k whose
+    // files can all be open at once as given by maxOpenFanIn. A negative run count means the count is not known,
+    // in which case the largest k allowed is used
+    public static int fanIn(long budget, int runs, int merges, int limit) {
+        long share = budget / merges;
+        int maxK = (int) Math.max(2, Math.min(limit, share / MIN_BUFFER - 1));
+        if (runs < 0) {
+            return maxK;
+        }
+        if (runs <= maxK) {
+            return Math.max(2, runs);
+        }
+        // The largest k gives the fewest passes, and the smallest k that needs no more passes is used
+        int fewest = passes(runs, maxK);
+        int low = 2;
+        int high = maxK;
+        while (low < high) {
+            int mid = (low + high) / 2;
+            if (passes(runs, mid) <= fewest) {
+                high = mid;
+            }
+            else {
+                low = mid + 1;
+            }
+        }
+        return low;
+    }
+
+    // Public method returning the largest fan-in that keeps no more than MAX_OPEN_FILES files open. Each of up to
+    // merges merges running at once holds its k runs and its output open, and the balanced merge holds the k
+    // files it reads and the k it writes, 2k in all, where the index and polyphase merges hold k + 1
+    public static int maxOpenFanIn(int merges, boolean balanced) {
+        int k = MAX_OPEN_FILES / merges - 1;
+        if (balanced) {
+            k = Math.min(k, MAX_OPEN_FILES / 2);
+        }
+        return Math.max(2, k);
+    }
+
+    // Public method returning the size of the buffer each stream of a k-way merge is read or written
+    // through, when up to merges merges run at once
+    public static int bufferSize(long budget, int k, int merges) {
+        long size = budget / merges / (k + 1);
+        return (int) Math.max(1 << 12, Math.min(MAX_BUFFER, size));
+    }
+
+    // Public method returning the number of times every line is rewritten when runs are merged k at a time
+    public static int passes(int runs, int k) {
+        int passes = 0;
+        long left = runs;
+        while (left > 1) {
+            left = (left + k - 1) / k;
+            passes++;
+        }
+        return passes;
+    }
+
+    // Private method to estimate the average line length of a file, in bytes, from its first megabyte
+    private static double averageLineLength(File input) throws IOException {
+        byte[] buffer = new byte[1 << 20];
+        int read = 0;
+        FileInputStream in = new FileInputStream(input);
+        try {
+            int n;
+            while (read < buffer.length && (n = in.read(buffer, read, buffer.length - read)) > 0) {
+                read += n;
+            }
+        }
+        finally {
+            in.close();
+        }
+        int lines = 0;
+        for (int i = 0; i < read; i++) {
+            if (buffer[i] == '\n') {
+                lines++;
+            }
+        }
+        if (lines == 0) {
+            // A single line, or none, so the whole sample is one line
+            return Math.max(1, read);
+        }
+        return Math.max(1.0, (double) (read - lines) / lines);
+    }
+}
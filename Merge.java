@@ -1,9 +1,7 @@
-import java.io.BufferedReader;
-import java.io.FileReader;
-import java.io.PrintWriter;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 
 /**
@@ -19,27 +17,115 @@ import java.io.File;
  */
 public class Merge {
     public static void main(String[] args) {
+        // Separating any -name=value options from the integer and filename
+        SortOptions options;
+        try {
+            options = SortOptions.parse(args);
+        }
+        catch (IllegalArgumentException ex) {
+            System.out.println("ERROR - " + ex.getMessage());
+            return;
+        }
+        args = options.positional;
+        // With -Xsort the integer can be left out, and k is then chosen from the memory budget
+        if (options.memory > 0 && args.length == 1) {
+            args = new String[] { null, args[0] };
+        }
         // Checking the correct number of arguments were passed and that the file passed is a .runs file
         if (args.length != 2 || !(args[1].endsWith(".runs"))) {
-            System.out.println("ERROR - Correct usage: java Merge [integer] [filename.runs]");
+            System.out.println("ERROR - Correct usage: java Merge [-engine=heap|loser] [-mode=balanced|index|polyphase] [-threads=n] [-io=stream|nio] [-comparator=prefix|string|<class>] [-Xsort=bytes] [-async] [-compress=none|deflate|front] [-key=fields] [-delimiter=c] [-combine=distinct|count|<class>] [-metrics=text|json] [-jmx] [-limit=n] [-until=line] [integer] [filename.runs]");
             return;
         }
         else {
             try {
                 // Getting the k-value passed and checking that it is at least 2
-                int k = Integer.parseInt(args[0]);
-                if (k < 2) {
+                int k = args[0] == null ? 0 : Integer.parseInt(args[0]);
+                if (args[0] != null && k < 2) {
                     System.out.println("ERROR - k-value must be greater than 1");
 					return;
                 }
-                // Creating a reader to read from the input file and an array of writers to print to files for sorting
-                BufferedReader br = new BufferedReader(new FileReader(args[1]));
-                PrintWriter[] writers = new PrintWriter[k];
+                // With -jmx the metrics can be watched over JMX while the runs are merged
+                if (options.jmx) {
+                    options.metrics.register("Merge");
+                }
+                // Every mode takes the run boundaries from the index CreateRuns wrote next to the runs file, so
+                // lines that are equal to the one before them stay in their run
+                File runsFile = new File(args[1]);
+                File indexFile = RunIndex.indexFile(runsFile);
+                if (!indexFile.exists()) {
+                    System.out.println("ERROR - no run index found, run CreateRuns again to create " + indexFile);
+                    return;
+                }
+                RunIndex index = RunIndex.load(indexFile);
+                // The keys CreateRuns put in front of the lines are only taken off when Merge knows they are there
+                if (index.keyed() != (options.key != null)) {
+                    System.out.println("ERROR - give Merge the same -key as CreateRuns, the runs were created "
+                            + (index.keyed() ? "with" : "without") + " one");
+                    return;
+                }
+                // Combined records can only be merged by the combiner that made them
+                String combine = options.combine == null ? null : Combiner.name(options.combine);
+                if (index.combine() == null ? combine != null : !index.combine().equals(combine)) {
+                    System.out.println("ERROR - give Merge the same -combine as CreateRuns, the runs were created "
+                            + (index.combine() == null ? "without one" : "with -combine=" + index.combine()));
+                    return;
+                }
+                // With a memory budget the buffers, and k if it was not given, are sized to fit in it
+                if (options.memory > 0) {
+                    k = sizeMerge(index.size(), k, options);
+                    System.err.println("Memory budget: k = " + k + " with " + options.bufferSize + " byte buffers");
+                }
                 // Creating a file with the same name as the input file but replacing .runs with .sorted
                 String filename = args[1].substring(0, args[1].length() - 5);
                 File sortedFile = new File(filename + ".sorted");
-                // Creating an array to store twice as many files as the k-value we were given
+                
+                // With -limit or -until only the first lines are wanted, so the runs are merged as in index mode
+                // but lazily, and the merge stops reading them once the bound is reached
+                if (options.limit >= 0 || options.until != null) {
+                    System.err.println("Planned Passes: at most " + IndexMerge.plannedMerges(index.size(), k));
+                    options.metrics.merge.start();
+                    MergedIterator lines = MergedIterator.open(runsFile, index, k, options);
+                    long written = lines.writeTo(sortedFile);
+                    options.metrics.merge.end();
+                    System.err.println("Lines written: " + written);
+                    System.err.println("Total Passes: " + Integer.toString(lines.passes()));
+                    options.metrics.print(options.metricsFormat);
+                    return;
+                }
+                
+                // In index mode the runs are opened straight from the index and merged in as few passes as k
+                // allows, without distributing them over temporary files
+                if (options.mode.equals("index")) {
+                    System.err.println("Planned Passes: " + IndexMerge.plannedMerges(index.size(), k));
+                    int totalPasses = IndexMerge.merge(runsFile, index, sortedFile, k, options);
+                    System.err.println("Total Passes: " + Integer.toString(totalPasses));
+                    options.metrics.print(options.metricsFormat);
+                    return;
+                }
+                
+                // In polyphase mode the runs are spread unevenly over k + 1 temporary files, and each phase only
+                // rewrites part of the data
+                if (options.mode.equals("polyphase")) {
+                    int totalPasses = PolyphaseMerge.merge(runsFile, index, sortedFile, k, options);
+                    System.err.println("Total Passes: " + Integer.toString(totalPasses));
+                    options.metrics.print(options.metricsFormat);
+                    return;
+                }
+                
+                // With more than one thread the independent merges of each balanced pass run side by side, and
+                // the nio path, the sized buffers of -Xsort and the threaded streams of -async are all handled
+                // there as well, so all of them go through ParallelMerge
+                if (options.threads > 1 || options.io.equals("nio") || options.memory > 0 || options.async) {
+                    int totalPasses = ParallelMerge.merge(runsFile, index, sortedFile, k, options);
+                    System.err.println("Total Passes: " + Integer.toString(totalPasses));
+                    options.metrics.print(options.metricsFormat);
+                    return;
+                }
+                
+                // Creating an array to store twice as many files as the k-value we were given, and the index of
+                // the runs held in each
                 File[] files = new File[k*2];
+                RunIndex[] indexes = new RunIndex[k*2];
                 
                 // Populating the file array with temporary files that will be deleted on exit
                 for (int j = 0; j < (k*2); j+=2) {
@@ -49,159 +135,80 @@ public class Merge {
                     files[j+1].deleteOnExit();
                 }
                 
-                // Populating the writers array with elements linked to the first k many temporary files in our array
-                for (int i = 0; i < k; i++) {
-                    // The append flag is set to true so no data is overwritten
-                    writers[i] = new PrintWriter(new BufferedWriter(new FileWriter(files[i], true)));
-                }
+                // Copying the runs round-robin into the first k many temporary files, and printing the passes it
+                // will take before making any of them. The merge phase of the metrics is timed from here
+                SortMetrics.Phase metrics = options.metrics.merge;
+                metrics.start();
+                int totalRuns = distribute(runsFile, index, files, indexes, k);
+                metrics.read(0, index.bytes());
+                metrics.wrote(0, index.bytes());
+                printPlan(totalRuns, k);
                 
-                // IF NOT USING END-OF-RUN MARKERS:                
-                // Adding each line from the input file to the current temporary file until we reach the end of that run
-                int n = 0;
-                String inputLine;
-                String previousLine = null;
-                while ((inputLine = br.readLine()) != null) {
-                    // Checking whether we have reached the end of a run
-                    if (previousLine != null && inputLine.compareTo(previousLine) <= 0) {
-                        // If so increment n (the index of the temporary file)
-                        n++;
-                        // If n is now outside of the first k many files in the file array, reset n to 0
-                        if (n == k) {
-                            n = 0;
-                        }
-                    }
-                    // Then adding the line as normal to the temporary file at array index n
-                    writers[n].println(inputLine);
-                    // Storing the current line so we can compare against it the next time
-                    previousLine = inputLine;
-                }
-                
-                // IF USING END-OF-RUN MARKERS:
-                /*// Adding each line from the input file to the current temporary file until we reach the end of that run
-                int n = 0;
-                String inputLine;
-                while ((inputLine = br.readLine()) != null) {
-                    // Checking whether we have reached the end-of-line marker
-                    if (inputLine.equals("][][][][")) {
-                        // If so increment n (the index of the temporary file)
-                        n++;
-                        // If n is now outside of the first k many files in the file array, reset n to 0
-                        if (n == k) {
-                            n = 0;
+                // Each phase merges the runs of the k input files into runs spread over the other k files, until a
+                // single run is left. On odd phases files 0 - k are the input and files k - k*2 the output, and on
+                // even phases the other way round, so inputBase is the first input file of the phase
+                RunWriter[] writers = new RunWriter[k];
+                int inputBase = 0;
+                int totalPasses = 0;
+                while (totalRuns > 1) {
+                    int outputBase = k - inputBase;
+                    // Creating the selected merge engine with a max capacity of the number of files we have (k)
+                    MergeEngine mergeEngine = createEngine(options, k);
+                    // Adding the input files that hold any runs, each read one indexed run at a time
+                    for (int i = 0; i < k; i++) {
+                        if (indexes[inputBase + i].size() > 0) {
+                            mergeEngine.addReader(new RunReader(files[inputBase + i], indexes[inputBase + i]));
+                            metrics.read(0, indexes[inputBase + i].bytes());
                         }
                     }
-                    // Otherwise adding the line as normal to the temporary file at array index n
-                    else {
-                        writers[n].println(inputLine);
+                    // Opening every output file once for the whole phase, which also clears what an earlier phase
+                    // left in it. Only the last phase, which leaves a single run, writes the sorted file's plain
+                    // lines that are not compressed, and that have lost any -key sort keys and -combine state
+                    boolean last = totalRuns <= k;
+                    String codec = last ? BlockCompression.NONE : options.compress;
+                    for (int i = 0; i < k; i++) {
+                        writers[i] = new RunWriter(files[outputBase + i], false, false, codec);
+                        writers[i].configure(options, last);
                     }
-                }*/
-                
-                // Closing the inputfile reader and all writers in the writer array
-                br.close();
-                for (int i = 0; i < k; i++) {
-                    writers[i].close();
-                }
-                
-                // We don't know whether the sorted file will be file 0 or file k in the files array, so we can check
-                // whether both of the preceding files are empty, which if true means all the data is sorted in either
-                // file 0 or file k. Until then, keep looping.
-                boolean oddNumPasses = true;
-                int totalPasses = 0;
-                while (!(files[1].length() == 0 && files[k+1].length() == 0)) {
-                    // If we are in an odd number of passes, we will have files 0 - k as our input files and k - k*2
-                    // as our output files, otherwise we will have files k - k*2  as our input files and 0 - k*2 as
-                    // our output files, so we need this flag to check
-                    if (oddNumPasses) {
-                        // Creating a new minheap with a max capacity of the number of files we have (k)
-                        MinHeap minHeap = new MinHeap(k);
-                        // Adding the files if they are not empty
-                        for (int i = 0; i < k; i++) {
-                            if (files[i].length() != 0) {
-                                minHeap.addFile(files[i]);
-                            }
-                        }
-                        
-                        // Checking that the input files are not ALL empty
-                        boolean inputFilesNotEmpty = true;
-                        int passes = k;
-                        while (inputFilesNotEmpty) {
-                            // The output file starts at k and increments after each pass, if it ever reaches k*2 it
-                            // resets to k
-                            if (passes == k*2) {
-                                passes = k;
-                            }
-                            // Creating a new pass and incrementing the pass counter by 1
-                            minHeap.createPass(files[passes]);
-                            totalPasses++;
-                            
-                            // Assuming the input files are empty, check the length of each. If any are not empty, set
-                            // the flag to true again
-                            inputFilesNotEmpty = false;
-                            for (int i = 0; i < k; i++) {
-                                if (files[i].length() != 0) {
-                                    inputFilesNotEmpty = true;
-                                }
-                            }
-                            // Incrementing the pass file counter so we will write to the next file in the array
-                            passes++;
-                        }
-                        oddNumPasses = false;
+                    
+                    // Creating a new pass for each run until every input has been read, with the output file
+                    // moving on after each pass
+                    totalRuns = 0;
+                    int output = 0;
+                    while (!mergeEngine.isExhausted()) {
+                        mergeEngine.createPass(writers[output]);
+                        totalRuns++;
+                        totalPasses++;
+                        output = (output + 1) % k;
                     }
-                    else {
-                        // Creating a new minheap with a max capacity of the number of files we have (k)
-                        MinHeap minHeap = new MinHeap(k);
-                        // Adding the files if they are not empty
-                        for (int i = k; i < k*2; i++) {
-                            if (files[i].length() != 0) {
-                                minHeap.addFile(files[i]);
-                            }
-                        }
-                        
-                        // Checking that the input files are not ALL empty
-                        boolean inputFilesNotEmpty = true;
-                        int passes = 0;
-                        while (inputFilesNotEmpty) {
-                            // The output file starts at 0 and increments after each pass, if it ever reaches k it
-                            // resets to 0
-                            if (passes == k) {
-                                passes = 0;
-                            }
-                            // Creating a new pass and incrementing the pass counter by 1
-                            minHeap.createPass(files[passes]);
-                            totalPasses++;
-                            
-                            // Assuming the input files are empty, check the length of each. If any are not empty, set
-                            // the flag to true again
-                            inputFilesNotEmpty = false;
-                            for (int i = k; i < k*2; i++) {
-                                if (files[i].length() != 0) {
-                                    inputFilesNotEmpty = true;
-                                }
-                            }
-                            // Incrementing the pass file counter so we will write to the next file in the array
-                            passes++;
-                        }
-                        oddNumPasses = true;
+                    for (int i = 0; i < k; i++) {
+                        writers[i].close();
+                        indexes[outputBase + i] = writers[i].index();
                     }
+                    inputBase = outputBase;
                 }
                 
-                // Checking whether the sorted data is stored in the file at array index 0, and if so renaming it to the
-                // sorted filename we created
-                if (files[0].length() != 0) {
-                    files[0].renameTo(sortedFile);
+                // The single run left is the whole of the first file in the last set written, unless there was no
+                // data at all, in which case the sorted file is left empty. A single run that was never merged is
+                // copied instead if it is compressed, keyed or combined
+                if (totalRuns == 0) {
+                    new RunWriter(sortedFile, false).close();
                 }
-                // Checking whether the sorted data is stored in the file at array index k, and if so renaming it to the
-                // sorted filename we created
-                else if (files[k].length() != 0) {
-                    files[k].renameTo(sortedFile);
+                else if (totalPasses == 0 && (BlockCompression.isCompressed(indexes[inputBase].codec()) || options.key != null
+                        || options.combine != null)) {
+                    copyRun(files[inputBase], indexes[inputBase], sortedFile, options);
                 }
-                // The program should never go into here if the logic above is sound, but catching the error just in case
-                else {
-                    System.out.println("ERROR: sorted file not found");
+                else if (!files[inputBase].renameTo(sortedFile)) {
+                    System.out.println("ERROR: unable to rename " + files[inputBase] + " to " + sortedFile);
+                }
+                for (File file : files) {
+                    file.delete();
                 }
+                metrics.end();
                 
                 // Printing to standard error the total number of passes required to sort the data
                 System.err.println("Total Passes: " + Integer.toString(totalPasses));
+                options.metrics.print(options.metricsFormat);
             }
             catch (Exception ex) {
                 // Catching the exception of being unable to parse the argument at index 0 to an int (and any other
@@ -211,121 +218,206 @@ public class Merge {
             }
         }
     }
+
+    // Method to copy the runs listed in the index of runsFile round-robin into the first k files, run i going to
+    // file i mod k, and to index the runs in each file. Returns the number of runs
+    static int distribute(File runsFile, RunIndex runs, File[] files, RunIndex[] indexes, int k) throws IOException {
+        int[] fileOf = new int[runs.size()];
+        for (int run = 0; run < runs.size(); run++) {
+            fileOf[run] = run % k;
+        }
+        return distribute(runsFile, runs, files, indexes, fileOf, k);
+    }
+
+    // Method to copy the runs listed in the index of runsFile into the first k files, run i going to file fileOf[i],
+    // and to index the runs in each file. The bytes of every run are copied as they are, without reading its lines.
+    // Returns the number of runs
+    static int distribute(File runsFile, RunIndex runs, File[] files, RunIndex[] indexes, int[] fileOf, int k)
+            throws IOException {
+        FileChannel in = FileChannel.open(runsFile.toPath(), StandardOpenOption.READ);
+        FileChannel[] outputs = new FileChannel[k];
+        long[] positions = new long[k];
+        try {
+            for (int i = 0; i < k; i++) {
+                outputs[i] = FileChannel.open(files[i].toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+                indexes[i] = new RunIndex();
+                indexes[i].setCodec(runs.codec());
+            }
+            for (int run = 0; run < runs.size(); run++) {
+                int f = fileOf[run];
+                long length = runs.length(run);
+                long copied = 0;
+                while (copied < length) {
+                    long n = in.transferTo(runs.offset(run) + copied, length - copied, outputs[f]);
+                    if (n <= 0) {
+                        throw new IOException(runsFile + " ends before the runs listed in its index");
+                    }
+                    copied += n;
+                }
+                indexes[f].add(positions[f], length);
+                positions[f] += length;
+            }
+        }
+        finally {
+            in.close();
+            for (FileChannel output : outputs) {
+                if (output != null) {
+                    output.close();
+                }
+            }
+        }
+        return runs.size();
+    }
+
+    // Method to copy the single run in a file of runs to the sorted file as plain lines, decompressing it and
+    // removing any -key sort keys and -combine state on the way. The copy is recorded in the metrics as a merge of
+    // the one run
+    static void copyRun(File file, RunIndex index, File sortedFile, SortOptions options) throws IOException {
+        long started = System.nanoTime();
+        RunReader reader = new RunReader(file, index);
+        RunWriter writer = new RunWriter(sortedFile, false);
+        writer.configure(options, true);
+        try {
+            String line;
+            while ((line = reader.readRecord()) != null) {
+                writer.writeRecord(line);
+            }
+        }
+        finally {
+            reader.close();
+            writer.close();
+        }
+        options.metrics.merge.read(0, index.bytes());
+        options.metrics.merge.merged(1, started, reader.records(), writer.records(), writer.position(), 0);
+    }
+
+    // Method to print the passes the balanced merge plans to make for the given number of runs. Each phase
+    // merges the runs k at a time, one from each input file, so a phase makes as many passes as the fullest file
+    // has runs, and its output is that many runs spread round the other k files
+    static void printPlan(int runs, int k) {
+        int phases = 0;
+        int passes = 0;
+        while (runs > 1) {
+            runs = (runs + k - 1) / k;
+            passes += runs;
+            phases++;
+        }
+        System.err.println("Planned Passes: " + passes + " in " + phases + (phases == 1 ? " phase" : " phases"));
+    }
+
+    // Method to size a merge of the given number of runs (-1 if not known) from the -Xsort budget, choosing k
+    // when it was not given (k is 0) and setting the read buffer size in the options. The merges of a balanced
+    // pass can run side by side, so each gets an equal share of the budget, while the other modes make one merge
+    // at a time. Returns k
+    static int sizeMerge(int runs, int k, SortOptions options) {
+        long budget = MemoryBudget.fit(options.memory);
+        boolean balanced = options.mode.equals("balanced");
+        int merges = balanced ? options.threads : 1;
+        if (k == 0) {
+            // In every mode the last merge is split between the -threads, each part holding its own files open
+            k = MemoryBudget.fanIn(budget, runs, merges, MemoryBudget.maxOpenFanIn(options.threads, balanced));
+        }
+        options.bufferSize = MemoryBudget.bufferSize(budget, k, merges);
+        if (options.async) {
+            // The blocks read ahead and written behind take about as much again as the buffers themselves
+            options.bufferSize /= 2;
+        }
+        return k;
+    }
+
+    // Creating the merge engine named by the -engine option, able to hold k input files and merging them in the
+    // order of the -comparator option, which records every pass it makes in the merge metrics
+    static MergeEngine createEngine(SortOptions options, int k) {
+        if (options.engine.equals("loser")) {
+            return new LoserTree(k, options.comparator, options.metrics.merge);
+        }
+        return new MinHeap(k, options.comparator, options.metrics.merge);
+    }
 }
 
-class MinHeap {
+class MinHeap implements MergeEngine {
     // Creating variables to store the capacity of the MinHeap once initialised
     private int capacity_, usableCapacity_;
     private int currentCapacity_ = 0;
-    // Creating arrays to hold the String data, the reader objects and the file objects
+    // Creating arrays to hold the String data, the key prefix of each String and the reader objects
     private String[] data_;
-    private BufferedReader[] readers_;
-    private File[] files_;
+    private long[] keys_;
+    private RunReader[] readers_;
+    
+    // The order the data is merged in
+    private RecordComparator comparator_;
     
-    // MinHeap constructor, passed an integer as an argument for the size of the heap
-    public MinHeap(int capacity) {
+    // Comparisons made so far, and the metrics phase each pass is recorded in, or null
+    private long comparisons_ = 0;
+    private SortMetrics.Phase metrics_;
+    
+    // Whether the current pass is complete, the number of files in it, when it started, the comparisons made
+    // before it and the lines it has read
+    private boolean passComplete_ = true;
+    private int fanIn_ = 0;
+    private long started_;
+    private long passComparisons_;
+    private long recordsRead_;
+    
+    // MinHeap constructor, passed an integer as an argument for the size of the heap and the order to merge in
+    public MinHeap(int capacity, RecordComparator comparator) {
+        this(capacity, comparator, null);
+    }
+    
+    // MinHeap constructor as above, which records each pass as a merge in the given metrics phase
+    public MinHeap(int capacity, RecordComparator comparator, SortMetrics.Phase metrics) {
         // Setting the capacity passed in as the max size for this MinHeap
         capacity_ = capacity;
         usableCapacity_ = capacity;
+        comparator_ = comparator;
+        metrics_ = metrics;
         // Creating the arrays now that we know the max size they will have to be
         data_ = new String[capacity];
-        readers_ = new BufferedReader[capacity];
-        files_ = new File[capacity];
+        keys_ = new long[capacity];
+        readers_ = new RunReader[capacity];
         
     }
     
-    // Public method to add a file to the heap, passed a File object as an argument
-    public void addFile(File nodeFile) {
-        try {
-            // Creating readers, String objects and linking the file all with the same index in their respective arrays
-            readers_[currentCapacity_] = new BufferedReader(new FileReader(nodeFile));
-            data_[currentCapacity_] = readers_[currentCapacity_].readLine();
-            files_[currentCapacity_] = nodeFile;
-            // Incrementing the count of how many objects we have filled in our tree
-            currentCapacity_++;
+    // Public method to add a stream of runs, such as a single indexed run or a file read with its index
+    public void addReader(RunReader reader) throws IOException {
+        readers_[currentCapacity_] = reader;
+        data_[currentCapacity_] = reader.readRecord();
+        if (data_[currentCapacity_] != null) {
+            keys_[currentCapacity_] = comparator_.prefix(data_[currentCapacity_]);
         }
-        catch (Exception e) {
-            System.out.println("Exception Thrown! " + e.toString() + " - unable to read from the given node file");
-            System.exit(1);
+        // Incrementing the count of how many objects we have filled in our tree
+        currentCapacity_++;
+    }
+    
+    // Public method returning true once every line of every input has been read and printed
+    public boolean isExhausted() {
+        for (int i = 0; i < currentCapacity_; i++) {
+            if (data_[i] != null) {
+                return false;
+            }
         }
+        return true;
     }
     
-    // Public method to create a pass through the data, given a File to print the pass to
-    public void createPass(File outputFile) {
+    // Public method to create a pass through the data, given the RunWriter to write the pass to
+    public void createPass(RunWriter writer_) {
         try {
-            // Setting the usable capacity to the number of elements we have in our MinHeap
-            usableCapacity_ = currentCapacity_;
-            // If any of these elements are empty, move them to the end of the heap and reduce the size of our heap
-            for (int i = 0; i < usableCapacity_; i++) {
-                if (data_[i] == null) {
-                    swap(usableCapacity_-1, i, null);
-                    usableCapacity_--;
-                }
-            }
-            // Putting the MinHeap in heap order
-            reheap();
-            
-            // Creating a writer object to the given output file, setting the append flag to true
-            PrintWriter writer_ = new PrintWriter(new BufferedWriter(new FileWriter(outputFile, true)));
+            // Noting where the output stands, so what the pass wrote can be recorded at the end
+            long recordsWritten = writer_.records();
+            long position = writer_.position();
+            startPass();
             
-            // Looping until we have no more data in our heap we can print to the current pass
-            boolean passComplete = false;
-            String lastPrinted = null;
-            while (passComplete != true) {
-                // If the current data is not empty AND either we haven't printed anything yet or the last thing we
-                // printed was less than the current data (still in order)
-                if ((data_[0] != null) && (lastPrinted == null || data_[0].compareTo(lastPrinted) >= 0)) {
-                    // Printing current data to the output file and storing it as the last thing we printed
-                    writer_.println(data_[0]);
-                    lastPrinted = data_[0];
-                    
-                    // Checking whether there is more data in the current file we have just printed from
-                    String next = readers_[0].readLine();
-                    // If yes, setting it as the current root and then downheaping to get the smallest at the root
-                    if (next != null) {
-                        data_[0] = next;
-                        downheap(0);
-                    }
-                    else {
-                        // Otherwise, if we have more than 1 node in our heap free...
-                        if (usableCapacity_ > 1) {
-                            // Empty the current file we are reading from
-                            PrintWriter pw = new PrintWriter(files_[0]);
-                            pw.print("");
-                            pw.close();
-                            // Move the current node to the max of our usable heap, reduce the size by 1, and downheap
-                            swap(usableCapacity_-1, 0, next);
-                            usableCapacity_--;
-                            downheap(0);
-                        }
-                        // If we are on the last node of our heap, and there is no more data in this file...
-                        else {
-                            // Empty the current file we are reading from
-                            PrintWriter pw = new PrintWriter(files_[0]);
-                            pw.print("");
-                            pw.close();
-                            // Set the flag to true that we have completed this pass, and close the output file writer
-                            passComplete = true;
-                            writer_.close();
-                        }
-                    }
-                }
-                // Otherwise either our data item is null, or is larger than the last thing we printed
-                else {
-                    // If we have more than 1 node free in our heap...
-                    if (usableCapacity_ > 1) {
-                        // Move the current node to the max of our usable heap, reduce the size by 1, and downheap
-                        swap(usableCapacity_-1, 0, data_[0]);
-                        usableCapacity_--;
-                        downheap(0);
-                    }
-                    // Otherwise this is the last node of our heap, so we set the flag to true that we have completed
-                    // this pass, and close the output file writer
-                    else {
-                        passComplete = true;
-                        writer_.close();
-                    }
-                }
+            // Printing each line the heap gives until we have no more data in our heap for the current pass, and
+            // ending the run in the output file
+            String line;
+            while ((line = next()) != null) {
+                writer_.writeRecord(line);
+            }
+            writer_.endRun();
+            if (metrics_ != null && fanIn_ > 0) {
+                metrics_.merged(fanIn_, started_, recordsRead_, writer_.records() - recordsWritten,
+                        writer_.position() - position, comparisons_ - passComparisons_);
             }
         }
         catch (Exception e) {
@@ -334,6 +426,104 @@ class MinHeap {
         }
     }
     
+    // Public method to start a pass through the data, whose lines are then taken one at a time with next
+    public void startPass() {
+        // Setting the usable capacity to the number of elements we have in our MinHeap
+        usableCapacity_ = currentCapacity_;
+        // If any of these elements are empty, move them to the end of the heap and reduce the size of our heap,
+        // looking at the same position again as the element moved into it may be empty too
+        for (int i = 0; i < usableCapacity_; i++) {
+            if (data_[i] == null) {
+                swap(usableCapacity_-1, i, null);
+                usableCapacity_--;
+                i--;
+            }
+        }
+        // Noting where the pass starts from, so what it read and compared can be recorded at the end
+        fanIn_ = usableCapacity_;
+        started_ = System.nanoTime();
+        passComparisons_ = comparisons_;
+        recordsRead_ = 0;
+        
+        // Putting the MinHeap in heap order. Every line in the usable heap belongs to the current run of its
+        // reader, which says where each run ends, so the root is always the next line of the pass
+        reheap();
+        passComplete_ = usableCapacity_ == 0;
+    }
+    
+    // Public method returning the next line of the pass, or null once the pass is complete
+    public String next() throws IOException {
+        if (passComplete_) {
+            return null;
+        }
+        // Taking the current data at the root
+        String line = data_[0];
+        recordsRead_++;
+        
+        // Checking whether there is more data in the current file we have just taken a line from
+        String next = readers_[0].readRecord();
+        // At the end of an indexed run the reader moves on to its next run, which waits for the next pass
+        boolean runEnded = false;
+        if (next == null && readers_[0].nextRun()) {
+            next = readers_[0].readRecord();
+            runEnded = true;
+        }
+        // If yes, setting it as the current root and then downheaping to get the smallest at the root
+        if (next != null && !runEnded) {
+            data_[0] = next;
+            keys_[0] = comparator_.prefix(next);
+            downheap(0);
+        }
+        else if (next != null) {
+            data_[0] = next;
+            keys_[0] = comparator_.prefix(next);
+            // If we have more than 1 node free, move the node out of the usable heap until the next pass
+            if (usableCapacity_ > 1) {
+                swap(usableCapacity_-1, 0, next);
+                usableCapacity_--;
+                downheap(0);
+            }
+            // Otherwise this was the last node of the pass, so the pass is complete
+            else {
+                passComplete_ = true;
+            }
+        }
+        else {
+            // Close the current file we are reading from
+            readers_[0].close();
+            // Otherwise, if we have more than 1 node in our heap free...
+            if (usableCapacity_ > 1) {
+                // Move the current node to the max of our usable heap, reduce the size by 1, and downheap
+                swap(usableCapacity_-1, 0, next);
+                usableCapacity_--;
+                downheap(0);
+            }
+            // If we are on the last node of our heap, and there is no more data in this file...
+            else {
+                // Clear its last line so it is not printed again in the next pass, and set the flag to true that
+                // we have completed this pass
+                data_[0] = null;
+                passComplete_ = true;
+            }
+        }
+        return line;
+    }
+    
+    // Public method to close every file that still has data, leaving none for later passes
+    public void close() throws IOException {
+        for (int i = 0; i < currentCapacity_; i++) {
+            if (data_[i] != null) {
+                data_[i] = null;
+                readers_[i].close();
+            }
+        }
+        passComplete_ = true;
+    }
+    
+    public long comparisons() {
+        return comparisons_;
+    }
+    
     // Private method to reorder the entire heap
     private void reheap() {
         // Calculate the middle of the heap (i.e. the first node that can be a parent) and downheap and then move up
@@ -354,9 +544,9 @@ class MinHeap {
         else {
             // Checking if the left child node or right child node has data that is less than the current
             // position, and are viable (that is, not null or outside the bounds of the usable heap)
-            while ((leftChild(pos) < usableCapacity_) && data_[leftChild(pos)] != null && ((data_[pos].compareTo(data_[leftChild(pos)]) > 0) || (rightChild(pos) < usableCapacity_ && (data_[rightChild(pos)] != null) && (data_[pos].compareTo(data_[rightChild(pos)])) > 0))) {
+            while ((leftChild(pos) < usableCapacity_) && data_[leftChild(pos)] != null && ((compare(pos, leftChild(pos)) > 0) || (rightChild(pos) < usableCapacity_ && (data_[rightChild(pos)] != null) && (compare(pos, rightChild(pos))) > 0))) {
                 // If the right child node is smaller than its parent, store that as the smallest
-                if ((rightChild(pos) < usableCapacity_) && data_[rightChild(pos)] != null && data_[leftChild(pos)].compareTo(data_[rightChild(pos)]) > 0) {
+                if ((rightChild(pos) < usableCapacity_) && data_[rightChild(pos)] != null && compare(leftChild(pos), rightChild(pos)) > 0) {
                     smaller = rightChild(pos);
                 }
                 // Otherwise store the left child as the smallest
@@ -377,21 +567,21 @@ class MinHeap {
     // the larger element, so as to not call readLine() twice
     private void swap(int smaller, int current, String largerElement) {
         try {
-            //Storing the current data, file, and reader objects of the smaller position in temporary variables
+            //Storing the current data, key, and reader objects of the smaller position in temporary variables
             String tempString = data_[smaller];
-            File tempFile = files_[smaller];
-            BufferedReader tempReader = readers_[smaller];
+            long tempKey = keys_[smaller];
+            RunReader tempReader = readers_[smaller];
             
-            // Setting the data, file, and reader pointers of the arrays equal to the data, file, and reader objects of
-            // the larger node
+            // Setting the data and reader pointers of the arrays equal to the data and reader objects of the larger
+            // node
             data_[smaller] = largerElement;
-            files_[smaller] = files_[current];
+            keys_[smaller] = keys_[current];
             readers_[smaller] = readers_[current];
             
-            // Setting the data, file, and reader pointers of the larger position in the arrays to the saved values
-            // that were for the smaller position in the arrays
+            // Setting the data and reader pointers of the larger position in the arrays to the saved values that
+            // were for the smaller position in the arrays
             data_[current] = tempString;
-            files_[current] = tempFile;
+            keys_[current] = tempKey;
             readers_[current] = tempReader;
         }
         catch (Exception e) {
@@ -400,6 +590,13 @@ class MinHeap {
         }
     }
     
+    // Private method to compare the data at two positions using their cached key prefixes, only comparing the
+    // Strings themselves when the prefixes are equal
+    private int compare(int pos1, int pos2) {
+        comparisons_++;
+        return comparator_.compare(data_[pos1], keys_[pos1], data_[pos2], keys_[pos2]);
+    }
+    
     // Private method to calculate the position of the left child of a node, given the current position. Returns an int
     private int leftChild(int pos) {
         return (((pos + 1) * 2) - 1);
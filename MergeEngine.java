@@ -0,0 +1,36 @@
+import java.io.IOException;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  MergeEngine.java
+ *  Purpose: the operations Merge needs from a k-way merge engine. Each pass reads the next run from every
+ *	input added to the engine and writes a single merged run to the given writer, or hands its records
+ *	over one at a time to a caller that wants them as they are merged, such as MergedIterator. MinHeap
+ *	and LoserTree both implement this, so either can be selected with the -engine option.
+ *
+ */
+interface MergeEngine {
+    // Adds a stream of runs, such as one run opened from a RunIndex or a file read with its index, reading its
+    // first line ready for the first pass
+    void addReader(RunReader reader) throws IOException;
+
+    // Merges the next run of every input into one run written to the given writer, ending the run there
+    void createPass(RunWriter writer) throws IOException;
+
+    // Starts a pass over the next run of every input, as createPass does, whose records are then taken with next
+    void startPass() throws IOException;
+
+    // Returns the next record of the pass started with startPass, or null once the pass is over
+    String next() throws IOException;
+
+    // Returns true once every input has been read to the end, so there are no more passes to make. Inputs are
+    // closed as they end and their files are left as they are
+    boolean isExhausted();
+
+    // Closes every input that has not been read to the end, for a merge stopped before its inputs ran out
+    void close() throws IOException;
+
+    // Returns the number of comparisons made so far
+    long comparisons();
+}
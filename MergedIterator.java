@@ -0,0 +1,309 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  MergedIterator.java
+ *  Purpose: the sorted lines of a file of runs, merged only as they are asked for, so a reader that wants
+ *	the first lines does not wait for the whole sorted file to be written. The runs are opened straight
+ *	from their RunIndex as Merge -mode=index does, and nothing is read until the first line is asked for.
+ *	When there are more than k, the smallest are merged into temporary files first until k are left, and
+ *	when k covers every run no pass is made at all. The runs left are merged through the -engine's
+ *	MergeEngine a record at a time as each line is taken, with the -key sort keys taken off and -combine
+ *	records combined and finished, so every line is the one the sorted file would hold. With limit(n) or
+ *	until(line) the merge stops once n lines have been taken or the next line sorts after the given one,
+ *	closing every run without reading the rest. The merges before the last are bounded the same way, each
+ *	stopping after the first n groups or at the until line, since no later line can be among those wanted,
+ *	so with more than k runs the first n lines cost about k n records read and written by each of those
+ *	merges and n log k comparisons in the last, on top of creating the runs. Close it, or the Stream it
+ *	gives, when done with it early, which closes the runs and deletes its temporary files. An IOException
+ *	while reading a run is thrown as an UncheckedIOException, as an Iterator cannot throw it.
+ *
+ */
+class MergedIterator implements Iterator<String>, Closeable {
+    private final SortOptions options_;
+    private final RecordComparator comparator_;
+    private final int k_;
+    // Whether the records are returned as they are written to a run, for the merges before the last, rather than
+    // as the lines of the sorted file
+    private final boolean records_;
+    // The runs to merge, until the merge starts, and then the engine merging those left after the merges before it
+    private PriorityQueue<IndexMerge.Run> queue_;
+    private MergeEngine engine_ = null;
+    private List<IndexMerge.Run> runs_ = new ArrayList<>();
+    // The original file of runs and the files that are deleted once the merge is closed
+    private final File runsFile_;
+    private final List<File> temporary_ = new ArrayList<>();
+    private int passes_ = 0;
+    // The next line to return, or null when it has not been read yet, and the record read past the end of a
+    // -combine group, which starts the next one
+    private String next_ = null;
+    private String pending_ = null;
+    private boolean closed_ = false;
+    // The bounds set with limit and until: lines still to return, or -1 for no limit, and the record no later
+    // than which lines are returned, or null
+    private long remaining_ = -1;
+    private String until_ = null;
+    // What the merge has done, recorded in the metrics as a merge once it is closed
+    private long started_;
+    private long comparisons_ = 0;
+    private long recordsRead_ = 0;
+    private long returned_ = 0;
+
+    // MergedIterator constructor, passed the runs to merge with a fan-in of k and the original file of runs, whose
+    // records are returned as they go in a run rather than as lines when records is true
+    private MergedIterator(PriorityQueue<IndexMerge.Run> runs, File runsFile, int k, boolean records,
+            SortOptions options) {
+        options_ = options;
+        comparator_ = options.comparator;
+        k_ = k;
+        records_ = records;
+        queue_ = runs;
+        runsFile_ = runsFile;
+    }
+
+    // Public method to open the merge of the runs of runsFile listed in its index with a fan-in of k. The -limit and
+    // -until options set the first bounds
+    public static MergedIterator open(File runsFile, RunIndex index, int k, SortOptions options) {
+        MergedIterator merge = new MergedIterator(IndexMerge.queue(runsFile, index), runsFile, k, false, options);
+        return merge.limit(options.limit).until(options.until);
+    }
+
+    // Public method to stop the merge once n more lines have been returned, or never with -1. Bounds narrow the
+    // merges before the last, so they can only be set before the first line is asked for
+    public MergedIterator limit(long n) {
+        checkNotStarted();
+        remaining_ = n;
+        return this;
+    }
+
+    // Public method to stop the merge at the first line that sorts after the given line, or never with null. With
+    // -key only the keys are compared, so every line whose keys equal the given line's is returned, and with
+    // -combine the line's group. Like limit, only before the first line
+    public MergedIterator until(String line) {
+        checkNotStarted();
+        if (line == null) {
+            until_ = null;
+            return this;
+        }
+        RunReader bound = new RunReader(List.of(line).iterator());
+        bound.configure(options_);
+        try {
+            until_ = bound.readRecord();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this;
+    }
+
+    // Public method to have a file deleted once the merge is closed, such as the file of runs it was opened on
+    public MergedIterator deleteOnClose(File file) {
+        temporary_.add(file);
+        return this;
+    }
+
+    // Public method returning the number of merges made so far, counted the same way as Merge's "Total Passes":
+    // those made before the first line, and this one, unless there were no runs to merge
+    public int passes() {
+        return passes_ + (runs_.isEmpty() ? 0 : 1);
+    }
+
+    public boolean hasNext() {
+        if (next_ == null && !closed_) {
+            try {
+                next_ = readNext();
+                if (next_ == null) {
+                    close();
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return next_ != null;
+    }
+
+    public String next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        String line = next_;
+        next_ = null;
+        returned_++;
+        return line;
+    }
+
+    // Public method returning the lines still to come as a sequential Stream, which closes the merge when closed
+    public Stream<String> stream() {
+        Spliterator<String> lines = Spliterators.spliteratorUnknownSize(this, Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(lines, false).onClose(() -> {
+            try {
+                close();
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    // Public method to write the lines still to come to a file, replacing what it held, and close the merge.
+    // Returns the number of lines written
+    public long writeTo(File file) throws IOException {
+        RunWriter writer = new RunWriter(file, false, options_.async);
+        long written = writeTo(writer);
+        options_.metrics.merge.wrote(0, writer.position());
+        return written;
+    }
+
+    // Public method to stop the merge, closing every run and deleting the temporary files, and to record it in the
+    // merge metrics. Closing it again does nothing
+    public void close() throws IOException {
+        if (closed_) {
+            return;
+        }
+        closed_ = true;
+        next_ = null;
+        try {
+            if (engine_ != null) {
+                engine_.close();
+            }
+        }
+        finally {
+            IndexMerge.release(runs_, runsFile_);
+            for (File file : temporary_) {
+                file.delete();
+            }
+            if (!runs_.isEmpty()) {
+                options_.metrics.merge.merged(runs_.size(), started_, recordsRead_, returned_, 0,
+                        engine_.comparisons() + comparisons_);
+            }
+        }
+    }
+
+    // Private method to write the lines still to come to the given writer, then close it and the merge. Returns
+    // the number of lines written
+    private long writeTo(RunWriter writer) throws IOException {
+        try {
+            while (hasNext()) {
+                writer.writeRecord(next());
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            writer.close();
+            close();
+        }
+        return writer.records();
+    }
+
+    // Private method to make the merges before the last, each bounded as this merge is, and start the last merge
+    // of the runs left through the engine chosen in the options
+    private void start() throws IOException {
+        passes_ = IndexMerge.reduce(queue_, runsFile_, k_, options_.compress, this::mergeBounded);
+        runs_ = new ArrayList<>(queue_);
+        queue_ = null;
+        started_ = System.nanoTime();
+        engine_ = Merge.createEngine(options_, k_);
+        for (IndexMerge.Run run : runs_) {
+            engine_.addReader(new RunReader(run.file, run.offset, run.length, options_.bufferSize, options_.async,
+                    run.codec));
+        }
+        engine_.startPass();
+    }
+
+    // Private method to merge a group of runs into a run that replaces the contents of outputFile, keeping only the
+    // records within this merge's bounds, and return its length
+    private long mergeBounded(List<IndexMerge.Run> group, File outputFile) throws IOException {
+        options_.metrics.merge.read(0, IndexMerge.length(group));
+        MergedIterator merge = new MergedIterator(IndexMerge.queue(group), runsFile_, k_, true, options_);
+        merge.remaining_ = remaining_;
+        merge.until_ = until_;
+        RunWriter writer = new RunWriter(outputFile, false, options_.async, options_.compress);
+        writer.configure(options_, false);
+        merge.writeTo(writer);
+        options_.metrics.merge.wrote(0, writer.position());
+        return writer.position();
+    }
+
+    // Private method returning the next line as it goes in the sorted file, or the next record as it goes in a run,
+    // or null once the merge is over
+    private String readNext() throws IOException {
+        if (remaining_ == 0) {
+            return null;
+        }
+        if (engine_ == null) {
+            start();
+        }
+        String record = pending_ != null ? pending_ : take();
+        pending_ = null;
+        if (record == null) {
+            return null;
+        }
+        if (options_.combine != null) {
+            // The records of a group are next to each other, so the group ends at the first record of another
+            String following;
+            while ((following = take()) != null && Combiner.sameGroup(record, following)) {
+                record = Combiner.combine(options_.combine, record, following, options_.key != null);
+            }
+            pending_ = following;
+        }
+        if (until_ != null && compareToBound(record) > 0) {
+            return null;
+        }
+        if (remaining_ > 0) {
+            remaining_--;
+        }
+        if (records_) {
+            return record;
+        }
+        String line = options_.key != null ? KeySpec.strip(record) : record;
+        return options_.combine != null ? options_.combine.finish(line) : line;
+    }
+
+    // Private method to take the next record from the engine
+    private String take() throws IOException {
+        String record = engine_.next();
+        if (record != null) {
+            recordsRead_++;
+        }
+        return record;
+    }
+
+    // Private method to compare a record with the until bound, comparing only the keys in front of them with -key,
+    // and only their groups with -combine so that a group is either returned whole or not at all
+    private int compareToBound(String record) {
+        comparisons_++;
+        if (options_.key == null && options_.combine == null) {
+            return comparator_.compare(record, until_);
+        }
+        return comparator_.compare(group(record), group(until_));
+    }
+
+    // Private method returning the part of a record before its first separator: the keys with -key, which also
+    // decide which records combine, or otherwise the -combine group
+    private static String group(String record) {
+        int separator = record.indexOf(KeySpec.SEPARATOR);
+        return separator < 0 ? record : record.substring(0, separator);
+    }
+
+    private void checkNotStarted() {
+        if (engine_ != null || closed_) {
+            throw new IllegalStateException("the bounds of a merge can only be set before its first line is taken");
+        }
+    }
+}
@@ -0,0 +1,238 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  ParallelMerge.java
+ *  Purpose: the balanced k-way merge run on several threads, used by Merge with -threads=n. The runs are
+ *	distributed over k temporary files and merged back and forth between 2k files exactly as Merge does,
+ *	with the offset and length of every run in every temporary file kept in a RunIndex. Output run t of
+ *	a pass only needs run t of each input file, and because merging keeps every byte its length is known
+ *	before it is written, so all the merges of a pass are handed to a pool of worker threads at once and
+ *	each worker writes its run straight into its own part of the output file. With -io=nio the workers
+ *	merge through ByteMerge, and with a single thread this is the balanced merge with each run opened on
+ *	its own. A compressed run's length is only known once it has been written, as is the length of a run
+ *	whose records are combined with -combine or lose their -key sort keys, so when a pass reads or writes
+ *	such runs each output file is instead written by a worker of its own, which merges the runs that go to
+ *	that file one after another. The last pass has a single merge, which RangeMerge splits by key range.
+ *
+ */
+class ParallelMerge {
+    // Public method to merge the runs of runsFile listed in its index into sortedFile with the given k, using the
+    // engine, I/O path and number of worker threads chosen in the options. Returns the number of merges made,
+    // counted the same way as Merge's "Total Passes", and times the merge phase of the metrics in the options
+    public static int merge(File runsFile, RunIndex runs, File sortedFile, int k, SortOptions options) throws IOException {
+        options.metrics.merge.start();
+        try {
+            return mergeRuns(runsFile, runs, sortedFile, k, options);
+        }
+        finally {
+            options.metrics.merge.end();
+        }
+    }
+
+    // Private method to make the balanced merge of the runs, returning the number of merges made
+    private static int mergeRuns(File runsFile, RunIndex runs, File sortedFile, int k, SortOptions options) throws IOException {
+        // Creating twice as many temporary files as k, with an index of the runs held in each
+        File[] files = new File[k * 2];
+        RunIndex[] indexes = new RunIndex[k * 2];
+        for (int i = 0; i < k * 2; i++) {
+            files[i] = File.createTempFile("Merge-", ".txt");
+            files[i].deleteOnExit();
+        }
+        int totalRuns = Merge.distribute(runsFile, runs, files, indexes, k);
+        options.metrics.merge.read(0, runs.bytes());
+        options.metrics.merge.wrote(0, runs.bytes());
+        Merge.printPlan(totalRuns, k);
+
+        ExecutorService pool = Executors.newFixedThreadPool(options.threads);
+        int totalPasses = 0;
+        int inputBase = 0;
+        try {
+            while (totalRuns > 1) {
+                // The files that are not being read from this pass are emptied ready to be written
+                int outputBase = k - inputBase;
+                for (int f = 0; f < k; f++) {
+                    new FileOutputStream(files[outputBase + f]).close();
+                    indexes[outputBase + f] = new RunIndex();
+                }
+
+                // Output run t merges run t of every input file that has one, and goes to output file t mod k
+                // straight after the runs already placed there
+                int groups = 0;
+                for (int f = 0; f < k; f++) {
+                    groups = Math.max(groups, indexes[inputBase + f].size());
+                    options.metrics.merge.read(0, indexes[inputBase + f].bytes());
+                }
+                List<List<IndexMerge.Run>> passGroups = new ArrayList<>();
+                for (int t = 0; t < groups; t++) {
+                    List<IndexMerge.Run> group = new ArrayList<>();
+                    for (int f = 0; f < k; f++) {
+                        RunIndex index = indexes[inputBase + f];
+                        if (t < index.size()) {
+                            group.add(new IndexMerge.Run(files[inputBase + f], index.offset(t), index.length(t),
+                                    index.codec()));
+                        }
+                    }
+                    passGroups.add(group);
+                }
+                // The last pass writes the sorted file, which is never compressed and holds no -key sort keys or
+                // -combine state. Any of those, or combining records, makes the merged runs' lengths differ from the
+                // runs they came from
+                boolean last = groups == 1;
+                String codec = last ? BlockCompression.NONE : options.compress;
+                List<Future<?>> merges = new ArrayList<>();
+                // The last pass is a single merge, which is split by key range between the threads instead
+                int partitions = last ? RangeMerge.partitions(passGroups.get(0), options) : 1;
+                if (partitions > 1) {
+                    indexes[outputBase].add(0, RangeMerge.merge(passGroups.get(0), files[outputBase], partitions,
+                            options, k));
+                }
+                else if (BlockCompression.isCompressed(codec) || BlockCompression.isCompressed(indexes[inputBase].codec())
+                        || (last && options.key != null) || options.combine != null) {
+                    for (int f = 0; f < Math.min(k, groups); f++) {
+                        List<List<IndexMerge.Run>> fileGroups = new ArrayList<>();
+                        for (int t = f; t < groups; t += k) {
+                            fileGroups.add(passGroups.get(t));
+                        }
+                        int output = outputBase + f;
+                        merges.add(pool.submit(() -> {
+                            indexes[output] = mergeFile(fileGroups, files[output], codec, last, options, k);
+                            return null;
+                        }));
+                    }
+                }
+                else {
+                    long[] outputPositions = new long[k];
+                    for (int t = 0; t < groups; t++) {
+                        List<IndexMerge.Run> group = passGroups.get(t);
+                        long length = IndexMerge.length(group);
+                        int output = outputBase + t % k;
+                        long offset = outputPositions[t % k];
+                        outputPositions[t % k] += length;
+                        indexes[output].add(offset, length);
+                        File outputFile = files[output];
+                        long expected = length;
+                        merges.add(pool.submit(() -> {
+                            mergeGroup(group, outputFile, offset, expected, options, k);
+                            return null;
+                        }));
+                    }
+                }
+                // Waiting for every merge of this pass before the next pass reads what they wrote
+                for (Future<?> result : merges) {
+                    result.get();
+                }
+                totalPasses += groups;
+                totalRuns = groups;
+                inputBase = outputBase;
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while merging", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("unable to merge runs", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+        }
+
+        // The single run left is the whole of the first file in the last set written, unless there was no data.
+        // A single run that was never merged is copied instead if it is compressed, keyed or combined
+        if (totalRuns == 0) {
+            new FileOutputStream(sortedFile).close();
+        }
+        else if (totalPasses == 0 && (BlockCompression.isCompressed(indexes[inputBase].codec()) || options.key != null
+                || options.combine != null)) {
+            Merge.copyRun(files[inputBase], indexes[inputBase], sortedFile, options);
+        }
+        else if (!files[inputBase].renameTo(sortedFile)) {
+            throw new IOException("unable to rename " + files[inputBase] + " to " + sortedFile);
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        return totalPasses;
+    }
+
+    // Method to merge one group of runs into the output file at the given offset, checking the merged run filled
+    // exactly the space set aside for it
+    static void mergeGroup(List<IndexMerge.Run> group, File outputFile, long offset, long expected,
+            SortOptions options, int k) throws IOException {
+        long written;
+        if (options.io.equals("nio")) {
+            written = ByteMerge.merge(group, outputFile, offset, options);
+        }
+        else {
+            MergeEngine mergeEngine = Merge.createEngine(options, k);
+            for (IndexMerge.Run run : group) {
+                mergeEngine.addReader(new RunReader(run.file, run.offset, run.length, options.bufferSize,
+                        options.async, run.codec));
+            }
+            RunWriter writer = new RunWriter(outputFile, offset, options.async);
+            mergeEngine.createPass(writer);
+            writer.close();
+            written = writer.position() - offset;
+        }
+        if (written != expected) {
+            throw new IOException("merged run is " + written + " bytes where " + expected
+                    + " were expected, the runs file may not be valid UTF-8");
+        }
+    }
+
+    // Method to merge each of the groups of runs in turn into one run apiece, written one after another with the
+    // named codec into the output file, returning the index of the runs written. The last pass writes the lines as
+    // they go in the sorted file, without their -key sort keys and -combine state
+    static RunIndex mergeFile(List<List<IndexMerge.Run>> groups, File outputFile, String codec,
+            boolean last, SortOptions options, int k) throws IOException {
+        if (options.io.equals("nio")) {
+            RunIndex index = new RunIndex();
+            index.setCodec(codec);
+            FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                long position = 0;
+                for (List<IndexMerge.Run> group : groups) {
+                    long length = ByteMerge.merge(group, out, codec, last, options);
+                    index.add(position, length);
+                    position += length;
+                }
+            }
+            finally {
+                out.close();
+            }
+            return index;
+        }
+        RunWriter writer = new RunWriter(outputFile, false, options.async, codec);
+        writer.configure(options, last);
+        try {
+            for (List<IndexMerge.Run> group : groups) {
+                MergeEngine mergeEngine = Merge.createEngine(options, k);
+                for (IndexMerge.Run run : group) {
+                    mergeEngine.addReader(new RunReader(run.file, run.offset, run.length, options.bufferSize,
+                            options.async, run.codec));
+                }
+                mergeEngine.createPass(writer);
+            }
+        }
+        finally {
+            writer.close();
+        }
+        return writer.index();
+    }
+}
@@ -0,0 +1,159 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  ParallelRuns.java
+ *  Purpose: creates runs on several threads, used by CreateRuns with -threads=n. The input file is split
+ *	into n byte ranges that start and end on line boundaries, and each thread runs replacement selection
+ *	over its own range with a heap of maxHeapSize / n lines (or bytes with -arena), writing to a part file
+ *	of its own. The part files are then joined into the .runs file and their indexes combined into one
+ *	RunIndex.
+ *
+ */
+class ParallelRuns {
+    // Public method to create the runs of input in runsFile using the number of threads and the comparator
+    // chosen in the options, returning the index of the runs written
+    public static RunIndex createRuns(File input, File runsFile, long maxHeapSize, SortOptions options) throws IOException {
+        int threads = options.threads;
+        long[] bounds = splitLines(input, threads);
+        // Each worker gets an equal share of the heap, or of the arena's bytes, so the total memory used stays the same.
+        // A share is held in one array, so it stays below 2g however large the whole is
+        int workerHeapSize = (int) Math.max(1, Math.min(Integer.MAX_VALUE - 16, maxHeapSize / threads));
+        File[] parts = new File[threads];
+        List<Future<RunIndex>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            for (int i = 0; i < threads; i++) {
+                parts[i] = File.createTempFile("CreateRuns-", ".part");
+                parts[i].deleteOnExit();
+                File part = parts[i];
+                long offset = bounds[i];
+                long length = bounds[i + 1] - bounds[i];
+                results.add(pool.submit(() -> {
+                    RunWriter pw = new RunWriter(part, false, false, options.compress);
+                    pw.configure(options, false);
+                    SortMetrics.Phase phase = options.metrics.createRuns;
+                    if (options.arena) {
+                        ArenaRuns.createRuns(input, offset, length, pw, workerHeapSize, options);
+                    }
+                    else {
+                        RunReader br = new RunReader(input, offset, length);
+                        br.configure(options);
+                        RecordComparator.Counting comparator = new RecordComparator.Counting(options.comparator);
+                        if (options.adaptive) {
+                            AdaptiveRuns.createRuns(br, pw, workerHeapSize, comparator);
+                        }
+                        else {
+                            CreateRuns.createRuns(br, pw, workerHeapSize, comparator);
+                        }
+                        br.close();
+                        phase.read(br.records(), length);
+                        phase.compared(comparator.comparisons());
+                    }
+                    pw.close();
+                    phase.wrote(pw.records(), pw.index().bytes());
+                    return pw.index();
+                }));
+            }
+
+            // Joining the part files in order, moving each part's runs along by the bytes written before it
+            RunIndex index = new RunIndex();
+            index.setCodec(options.compress);
+            FileChannel out = new FileOutputStream(runsFile).getChannel();
+            try {
+                for (int i = 0; i < threads; i++) {
+                    RunIndex partIndex = results.get(i).get();
+                    long base = out.position();
+                    for (int run = 0; run < partIndex.size(); run++) {
+                        index.add(base + partIndex.offset(run), partIndex.length(run));
+                    }
+                    FileChannel in = new FileInputStream(parts[i]).getChannel();
+                    try {
+                        long size = in.size();
+                        long copied = 0;
+                        while (copied < size) {
+                            copied += in.transferTo(copied, size - copied, out);
+                        }
+                    }
+                    finally {
+                        in.close();
+                    }
+                    parts[i].delete();
+                }
+            }
+            finally {
+                out.close();
+            }
+            return index;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while creating runs", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("unable to create runs", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+            for (File part : parts) {
+                if (part != null) {
+                    part.delete();
+                }
+            }
+        }
+    }
+
+    // Public method to split a file into the given number of byte ranges that each start at the beginning of a
+    // line. Returns parts + 1 boundaries, so range i runs from bounds[i] up to bounds[i + 1]
+    public static long[] splitLines(File file, int parts) throws IOException {
+        long size = file.length();
+        long[] bounds = new long[parts + 1];
+        bounds[parts] = size;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel channel = in.getChannel();
+            byte[] buffer = new byte[8192];
+            for (int i = 1; i < parts; i++) {
+                // Starting from the even split point, move forward to just after the next line end
+                long pos = Math.max(bounds[i - 1], size * i / parts);
+                bounds[i] = size;
+                if (pos == 0) {
+                    bounds[i] = 0;
+                    continue;
+                }
+                // The byte before the split point is checked too, in case a line ends right there
+                channel.position(pos - 1);
+                long scanned = pos - 1;
+                int n;
+                search:
+                while ((n = in.read(buffer)) > 0) {
+                    for (int j = 0; j < n; j++) {
+                        if (buffer[j] == '\n') {
+                            bounds[i] = scanned + j + 1;
+                            break search;
+                        }
+                    }
+                    scanned += n;
+                }
+            }
+        }
+        finally {
+            in.close();
+        }
+        return bounds;
+    }
+}
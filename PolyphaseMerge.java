@@ -0,0 +1,249 @@
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  PolyphaseMerge.java
+ *  Purpose: the polyphase merge, used by Merge with -mode=polyphase. The balanced merge needs 2k temporary
+ *	files for a fan-in of k, half of them waiting to be written at any moment, and every phase rewrites
+ *	every byte. Here k + 1 files give a fan-in of k: the runs are spread over k of them unevenly, in the
+ *	counts of a generalised Fibonacci sequence, and each phase merges one run from every input file onto
+ *	the empty file until one input runs out. That file is the output of the next phase and the others
+ *	carry on where they left off, so a phase only rewrites part of the data. When there are fewer runs
+ *	than the sequence calls for, the missing ones are dummy runs, counted but never read, which the first
+ *	merges of a phase skip. Every file keeps the runs it has left in a queue of IndexMerge.Runs, and the
+ *	merges of a phase are written one after another into its output file as ParallelMerge does with
+ *	compressed runs, so compressed, keyed and combined runs and -io=nio are all handled the same way.
+ *	Merges are made one at a time, apart from the last, which RangeMerge splits between the -threads.
+ *
+ */
+class PolyphaseMerge {
+    // One of the k + 1 files: the runs it still holds in order, after a number of dummy runs
+    private static class Tape {
+        final File file;
+        final ArrayDeque<IndexMerge.Run> runs = new ArrayDeque<>();
+        int dummies = 0;
+
+        Tape(File file) {
+            this.file = file;
+        }
+
+        // A copy of the tape for planning, which shares its runs but can take them without changing it
+        Tape copy() {
+            Tape copy = new Tape(file);
+            copy.runs.addAll(runs);
+            copy.dummies = dummies;
+            return copy;
+        }
+
+        int size() {
+            return runs.size() + dummies;
+        }
+    }
+
+    // Public method to merge the runs of runsFile listed in its index into sortedFile with a fan-in of k over k + 1
+    // temporary files. Returns the number of merges made, counted the same way as Merge's "Total Passes", and times
+    // the merge phase of the metrics in the options
+    public static int merge(File runsFile, RunIndex runs, File sortedFile, int k, SortOptions options) throws IOException {
+        options.metrics.merge.start();
+        try {
+            return mergeRuns(runsFile, runs, sortedFile, k, options);
+        }
+        finally {
+            options.metrics.merge.end();
+        }
+    }
+
+    // Method returning how many runs each of k files starts with for a polyphase merge of the given number of runs:
+    // the smallest perfect distribution with at least that many, largest first. From one run on the first file,
+    // each level has the counts a + b, a + c, ..., a + z, a of the level below's a, b, ..., z, so that merging as many
+    // runs as the last file has steps back down a level
+    static long[] distribution(int runs, int k) {
+        long[] counts = new long[k];
+        counts[0] = 1;
+        long total = 1;
+        while (total < runs) {
+            long[] next = new long[k];
+            for (int i = 0; i < k - 1; i++) {
+                next[i] = counts[0] + counts[i + 1];
+            }
+            next[k - 1] = counts[0];
+            total += (k - 1) * counts[0];
+            counts = next;
+        }
+        return counts;
+    }
+
+    // Private method to make the polyphase merge of the runs, returning the number of merges made
+    private static int mergeRuns(File runsFile, RunIndex runs, File sortedFile, int k, SortOptions options) throws IOException {
+        File[] files = new File[k + 1];
+        RunIndex[] indexes = new RunIndex[k + 1];
+        Tape[] tapes = new Tape[k + 1];
+        for (int f = 0; f <= k; f++) {
+            files[f] = File.createTempFile("Merge-", ".txt");
+            files[f].deleteOnExit();
+            tapes[f] = new Tape(files[f]);
+        }
+
+        // Copying the runs round-robin into the first k files, passing over a file once it has all the runs the
+        // distribution gives it, so the dummy runs that make up the rest are spread as evenly as they can be
+        long[] counts = distribution(runs.size(), k);
+        int[] fileOf = new int[runs.size()];
+        int[] placed = new int[k];
+        int f = 0;
+        for (int run = 0; run < runs.size(); run++) {
+            while (placed[f] == counts[f]) {
+                f = (f + 1) % k;
+            }
+            fileOf[run] = f;
+            placed[f]++;
+            f = (f + 1) % k;
+        }
+        Merge.distribute(runsFile, runs, files, indexes, fileOf, k);
+        options.metrics.merge.read(0, runs.bytes());
+        options.metrics.merge.wrote(0, runs.bytes());
+        for (f = 0; f < k; f++) {
+            for (int run = 0; run < indexes[f].size(); run++) {
+                tapes[f].runs.add(new IndexMerge.Run(files[f], indexes[f].offset(run), indexes[f].length(run),
+                        indexes[f].codec()));
+            }
+            tapes[f].dummies = (int) (counts[f] - placed[f]);
+        }
+        printPlan(tapes, k, runs.bytes());
+
+        int totalPasses = 0;
+        int output = k;
+        while (size(tapes) > 1) {
+            // The phase that leaves a single run writes the sorted file's plain lines, which are not compressed and
+            // have lost any -key sort keys and -combine state
+            boolean last = size(tapes) == k;
+            String codec = last ? BlockCompression.NONE : options.compress;
+            List<List<IndexMerge.Run>> groups = takePhase(tapes, output);
+            for (List<IndexMerge.Run> group : groups) {
+                options.metrics.merge.read(0, IndexMerge.length(group));
+            }
+            // With -threads the single merge of the last phase is split by key range between the threads
+            int partitions = last ? RangeMerge.partitions(groups.get(0), options) : 1;
+            RunIndex index;
+            if (partitions > 1) {
+                index = new RunIndex();
+                index.add(0, RangeMerge.merge(groups.get(0), files[output], partitions, options, k));
+            }
+            else {
+                index = ParallelMerge.mergeFile(groups, files[output], codec, last, options, k);
+            }
+            for (int run = 0; run < index.size(); run++) {
+                tapes[output].runs.add(new IndexMerge.Run(files[output], index.offset(run), index.length(run),
+                        index.codec()));
+            }
+            totalPasses += groups.size();
+            output = emptied(tapes, output);
+        }
+
+        // The single run left is the whole of its file, unless there was no data at all, in which case the sorted
+        // file is left empty. A single run that was never merged is copied instead if it is compressed, keyed or
+        // combined
+        int left = 0;
+        while (left < k && tapes[left].runs.isEmpty()) {
+            left++;
+        }
+        if (tapes[left].runs.isEmpty()) {
+            new FileOutputStream(sortedFile).close();
+        }
+        else if (totalPasses == 0 && (BlockCompression.isCompressed(runs.codec()) || options.key != null
+                || options.combine != null)) {
+            Merge.copyRun(files[left], indexes[left], sortedFile, options);
+        }
+        else if (!files[left].renameTo(sortedFile)) {
+            throw new IOException("unable to rename " + files[left] + " to " + sortedFile);
+        }
+        for (File file : files) {
+            file.delete();
+        }
+        return totalPasses;
+    }
+
+    // Private method to take the runs of one phase from every tape but the output: as many groups as the shortest
+    // input has runs, each holding the next run of every input, with a dummy run taken in place of a real one while
+    // an input has any left. A group of nothing but dummy runs is not merged but becomes a dummy run on the output
+    private static List<List<IndexMerge.Run>> takePhase(Tape[] tapes, int output) {
+        int merges = Integer.MAX_VALUE;
+        for (int f = 0; f < tapes.length; f++) {
+            if (f != output) {
+                merges = Math.min(merges, tapes[f].size());
+            }
+        }
+        List<List<IndexMerge.Run>> groups = new ArrayList<>();
+        for (int t = 0; t < merges; t++) {
+            List<IndexMerge.Run> group = new ArrayList<>();
+            for (int f = 0; f < tapes.length; f++) {
+                if (f == output) {
+                    continue;
+                }
+                if (tapes[f].dummies > 0) {
+                    tapes[f].dummies--;
+                }
+                else {
+                    group.add(tapes[f].runs.poll());
+                }
+            }
+            if (group.isEmpty()) {
+                tapes[output].dummies++;
+            }
+            else {
+                groups.add(group);
+            }
+        }
+        return groups;
+    }
+
+    // Private method returning the input tape a phase left empty, which is the output of the next phase
+    private static int emptied(Tape[] tapes, int output) {
+        for (int f = 0; f < tapes.length; f++) {
+            if (f != output && tapes[f].size() == 0) {
+                return f;
+            }
+        }
+        throw new IllegalStateException("a polyphase phase must empty one of its inputs");
+    }
+
+    // Private method returning the number of runs, real and dummy, on all the tapes
+    private static int size(Tape[] tapes) {
+        int size = 0;
+        for (Tape tape : tapes) {
+            size += tape.size();
+        }
+        return size;
+    }
+
+    // Private method to print the merges the polyphase merge plans to make and the bytes they will write, found by
+    // running its phases on copies of the tapes with each merged run as long as the runs it merges
+    private static void printPlan(Tape[] tapes, int output, long bytes) {
+        Tape[] plan = new Tape[tapes.length];
+        for (int f = 0; f < tapes.length; f++) {
+            plan[f] = tapes[f].copy();
+        }
+        int phases = 0;
+        int merges = 0;
+        long written = 0;
+        while (size(plan) > 1) {
+            for (List<IndexMerge.Run> group : takePhase(plan, output)) {
+                long length = IndexMerge.length(group);
+                plan[output].runs.add(new IndexMerge.Run(null, 0, length));
+                written += length;
+                merges++;
+            }
+            phases++;
+            output = emptied(plan, output);
+        }
+        System.err.println("Planned Passes: " + merges + " in " + phases + (phases == 1 ? " phase" : " phases")
+                + String.format(Locale.ROOT, ", writing %d bytes (%.2f times the runs)", written,
+                bytes == 0 ? 0.0 : (double) written / bytes));
+    }
+}
@@ -0,0 +1,296 @@
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  RangeMerge.java
+ *  Purpose: the last merge split by key range between the -threads, used by every merge mode. However the
+ *	passes before it are spread over threads, the last merge is a single stream through one heap or tree
+ *	into one output. Here lines are sampled from the runs at evenly spaced byte offsets, and the samples
+ *	at evenly spaced ranks become splitters, one fewer than the partitions. Each run is sorted, so the
+ *	first of its lines that is no smaller than a splitter is found by a binary search over its bytes, and
+ *	the slices of the runs between two splitters merge into a part of the sorted file that every line of
+ *	the slices before it sorts ahead of. The partitions are merged on threads of their own, each writing
+ *	straight into its own part of the sorted file when the merged length is the length of its slices, and
+ *	otherwise, when -key sort keys are taken off or -combine records combined, into a file of its own that
+ *	is copied onto the end of the sorted file once all of them have finished. With -combine the splitters
+ *	are cut to the part of the record that decides which records combine, so every record of a group goes
+ *	to the same partition. Compressed runs cannot be searched by byte offset, so they keep a single merge.
+ *
+ */
+class RangeMerge {
+    // Lines sampled from the runs for each partition
+    static final int SAMPLES = 64;
+    // Fewest bytes worth merging on a thread of their own
+    static final long MIN_PARTITION = 1 << 20;
+    // Bytes read at a time while looking for a line
+    private static final int PROBE = 1 << 12;
+
+    // Public method returning how many partitions the last merge of a group of runs can be split into: one for
+    // each of the -threads, as long as each has MIN_PARTITION bytes to merge, or 1 when any run is compressed
+    public static int partitions(List<IndexMerge.Run> group, SortOptions options) {
+        for (IndexMerge.Run run : group) {
+            if (BlockCompression.isCompressed(run.codec)) {
+                return 1;
+            }
+        }
+        return (int) Math.max(1, Math.min(options.threads, IndexMerge.length(group) / MIN_PARTITION));
+    }
+
+    // Public method to make the last merge of a group of runs into outputFile, split into the given number of
+    // partitions merged side by side, each recorded in the metrics as a merge of its own. The bytes read are
+    // left to the caller, as for any other merge. Returns the length of the output file
+    public static long merge(List<IndexMerge.Run> group, File outputFile, int partitions, SortOptions options, int k)
+            throws IOException {
+        List<String> splitters = splitters(group, partitions, options);
+        // bounds[r][p] is where partition p starts in run r, and bounds[r][p + 1] where it ends
+        long[][] bounds = new long[group.size()][];
+        for (int r = 0; r < group.size(); r++) {
+            bounds[r] = bounds(group.get(r), splitters, options);
+        }
+        List<List<IndexMerge.Run>> slices = new ArrayList<>();
+        for (int p = 0; p <= splitters.size(); p++) {
+            List<IndexMerge.Run> slice = new ArrayList<>();
+            for (int r = 0; r < group.size(); r++) {
+                if (bounds[r][p + 1] > bounds[r][p]) {
+                    slice.add(new IndexMerge.Run(group.get(r).file, bounds[r][p], bounds[r][p + 1] - bounds[r][p]));
+                }
+            }
+            if (!slice.isEmpty()) {
+                slices.add(slice);
+            }
+        }
+
+        // The partitions share the buffers sized for a single merge
+        SortOptions sliceOptions = options.copy();
+        if (options.bufferSize > 0) {
+            sliceOptions.bufferSize = Math.max(MemoryBudget.MIN_BUFFER, options.bufferSize / slices.size());
+        }
+        boolean positional = options.key == null && options.combine == null;
+        File[] segments = new File[slices.size()];
+        ExecutorService pool = Executors.newFixedThreadPool(slices.size());
+        try {
+            new FileOutputStream(outputFile).close();
+            List<Future<?>> merges = new ArrayList<>();
+            long offset = 0;
+            for (int p = 0; p < slices.size(); p++) {
+                List<IndexMerge.Run> slice = slices.get(p);
+                long length = IndexMerge.length(slice);
+                long at = offset;
+                offset += length;
+                if (positional) {
+                    merges.add(pool.submit(() -> {
+                        ParallelMerge.mergeGroup(slice, outputFile, at, length, sliceOptions, k);
+                        return null;
+                    }));
+                }
+                else {
+                    File segment = File.createTempFile("Merge-", ".txt");
+                    segment.deleteOnExit();
+                    segments[p] = segment;
+                    merges.add(pool.submit(() -> {
+                        ParallelMerge.mergeFile(Collections.singletonList(slice), segment, BlockCompression.NONE, true,
+                                sliceOptions, k);
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> result : merges) {
+                result.get();
+            }
+            return positional ? offset : concatenate(segments, outputFile);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while merging", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("unable to merge runs", e.getCause());
+        }
+        finally {
+            pool.shutdownNow();
+            for (File segment : segments) {
+                if (segment != null) {
+                    segment.delete();
+                }
+            }
+        }
+    }
+
+    // Private method to choose the splitters between the partitions from lines sampled across the runs, each run
+    // giving samples in proportion to its length
+    private static List<String> splitters(List<IndexMerge.Run> group, int partitions, SortOptions options)
+            throws IOException {
+        long total = IndexMerge.length(group);
+        List<String> samples = new ArrayList<>();
+        for (IndexMerge.Run run : group) {
+            int n = (int) Math.max(1, (long) partitions * SAMPLES * run.length / total);
+            samples.addAll(sample(run.file, run.offset, run.length, n));
+        }
+        return choose(samples, partitions, options);
+    }
+
+    // Method returning n lines sampled at evenly spaced byte offsets of the part of a file from offset for length
+    // bytes, each the first line to start at or after its offset
+    static List<String> sample(File file, long offset, long length, int n) throws IOException {
+        List<String> samples = new ArrayList<>();
+        long end = offset + length;
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            for (int i = 0; i < n; i++) {
+                long start = lineStart(channel, offset + length * i / n, offset, end);
+                if (start < end) {
+                    samples.add(lineAt(channel, start, end));
+                }
+            }
+        }
+        finally {
+            channel.close();
+        }
+        return samples;
+    }
+
+    // Method to choose the splitters between the given number of partitions from sampled records, which are
+    // sorted in place, as the samples at evenly spaced ranks. With -combine each splitter is cut to its group, and
+    // equal splitters are only kept once, so there may be fewer partitions than asked for
+    static List<String> choose(List<String> samples, int partitions, SortOptions options) {
+        samples.sort(options.comparator);
+        List<String> splitters = new ArrayList<>();
+        for (int p = 1; p < partitions && !samples.isEmpty(); p++) {
+            String splitter = samples.get(samples.size() * p / partitions);
+            if (options.combine != null) {
+                int separator = splitter.indexOf(KeySpec.SEPARATOR);
+                splitter = separator < 0 ? splitter : splitter.substring(0, separator);
+            }
+            if (splitters.isEmpty() || options.comparator.compare(splitters.get(splitters.size() - 1), splitter) < 0) {
+                splitters.add(splitter);
+            }
+        }
+        return splitters;
+    }
+
+    // Private method returning the byte offsets at which each partition starts in a run, from the run's own
+    // offset, followed by the end of the run. A partition starts at the first line no smaller than its splitter,
+    // found by a binary search over the bytes after where the partition before it starts
+    private static long[] bounds(IndexMerge.Run run, List<String> splitters, SortOptions options) throws IOException {
+        long end = run.offset + run.length;
+        long[] bounds = new long[splitters.size() + 2];
+        bounds[0] = run.offset;
+        bounds[splitters.size() + 1] = end;
+        FileChannel channel = FileChannel.open(run.file.toPath(), StandardOpenOption.READ);
+        try {
+            for (int s = 0; s < splitters.size(); s++) {
+                // The smallest offset whose next line is no smaller than the splitter, or the end of the run
+                long low = bounds[s];
+                long high = end;
+                while (low < high) {
+                    long middle = low + (high - low) / 2;
+                    long start = lineStart(channel, middle, run.offset, end);
+                    if (start == end || options.comparator.compare(lineAt(channel, start, end), splitters.get(s)) >= 0) {
+                        high = middle;
+                    }
+                    else {
+                        low = middle + 1;
+                    }
+                }
+                bounds[s + 1] = lineStart(channel, low, run.offset, end);
+            }
+        }
+        finally {
+            channel.close();
+        }
+        return bounds;
+    }
+
+    // Private method returning the offset of the first line of a run that starts at or after the given offset,
+    // or the end of the run when there is none
+    private static long lineStart(FileChannel channel, long offset, long start, long end) throws IOException {
+        if (offset <= start) {
+            return start;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(PROBE);
+        long position = offset - 1;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(PROBE, end - position));
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                throw new IOException("run ends before the length given in its index");
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    return position + i + 1;
+                }
+            }
+            position += n;
+        }
+        return end;
+    }
+
+    // Private method returning the line of a run that starts at the given offset, without its '\n'
+    private static String lineAt(FileChannel channel, long start, long end) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        ByteBuffer buffer = ByteBuffer.allocate(PROBE);
+        long position = start;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(PROBE, end - position));
+            int n = channel.read(buffer, position);
+            if (n <= 0) {
+                throw new IOException("run ends before the length given in its index");
+            }
+            for (int i = 0; i < n; i++) {
+                if (buffer.get(i) == '\n') {
+                    line.write(buffer.array(), 0, i);
+                    return line.toString(StandardCharsets.UTF_8);
+                }
+            }
+            line.write(buffer.array(), 0, n);
+            position += n;
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+
+    // Method to copy the files the partitions were merged into one after another into the output file, returning
+    // its length
+    static long concatenate(File[] segments, File outputFile) throws IOException {
+        FileChannel out = FileChannel.open(outputFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        long position = 0;
+        try {
+            for (File segment : segments) {
+                FileChannel in = FileChannel.open(segment.toPath(), StandardOpenOption.READ);
+                try {
+                    long length = in.size();
+                    long copied = 0;
+                    while (copied < length) {
+                        copied += in.transferTo(copied, length - copied, out);
+                    }
+                    position += length;
+                }
+                finally {
+                    in.close();
+                }
+            }
+        }
+        finally {
+            out.close();
+        }
+        return position;
+    }
+}
@@ -0,0 +1,102 @@
+import java.util.Comparator;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  RecordComparator.java
+ *  Purpose: the order lines are sorted in, chosen with -comparator. As well as comparing two lines, a
+ *	comparator gives every line an 8 byte key prefix that the heaps cache in a long[] next to the lines.
+ *	Prefixes must keep the order of the lines: if the prefix of a is below the prefix of b (as unsigned
+ *	longs) then a must sort before b. Most comparisons are then settled by comparing two longs already in
+ *	the array, and the lines themselves are only compared when the prefixes are equal. A comparator that
+ *	cannot give a useful prefix can return 0 for every line. Comparators are shared between threads, so
+ *	they must not keep any state.
+ *
+ */
+interface RecordComparator extends Comparator<String> {
+    // Returns the key prefix of a line
+    long prefix(String record);
+
+    // Compares two lines given their cached prefixes, only comparing the lines themselves when the prefixes tie
+    default int compare(String a, long aPrefix, String b, long bPrefix) {
+        if (aPrefix != bPrefix) {
+            return Long.compareUnsigned(aPrefix, bPrefix);
+        }
+        return compare(a, b);
+    }
+
+    // Public method to create the comparator named by -comparator: "prefix", "string" or a class name
+    static RecordComparator forName(String name) {
+        if (name.equals("prefix")) {
+            return new Prefix();
+        }
+        if (name.equals("string")) {
+            return new Natural();
+        }
+        try {
+            return (RecordComparator) Class.forName(name).getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException | ClassCastException e) {
+            throw new IllegalArgumentException("-comparator must be prefix, string or the name of a RecordComparator class");
+        }
+    }
+
+    // The default order, String.compareTo, with the first four chars of a line packed into its prefix
+    class Prefix implements RecordComparator {
+        public long prefix(String record) {
+            // Each char takes 16 bits, and a line shorter than four chars is padded with zeros, which can only
+            // make it tie with or sort before the lines that carry on past it
+            long prefix = 0;
+            int length = Math.min(4, record.length());
+            for (int i = 0; i < length; i++) {
+                prefix |= (long) record.charAt(i) << (48 - 16 * i);
+            }
+            return prefix;
+        }
+
+        public int compare(String a, String b) {
+            return a.compareTo(b);
+        }
+    }
+
+    // String.compareTo with no prefix, so every comparison compares the lines themselves
+    class Natural implements RecordComparator {
+        public long prefix(String record) {
+            return 0;
+        }
+
+        public int compare(String a, String b) {
+            return a.compareTo(b);
+        }
+    }
+
+    // Another comparator's order, counting the comparisons made for SortMetrics. The count is a plain field, so
+    // unlike the comparators it wraps a Counting belongs to the one thread that compares with it
+    class Counting implements RecordComparator {
+        private final RecordComparator comparator_;
+        private long comparisons_ = 0;
+
+        Counting(RecordComparator comparator) {
+            comparator_ = comparator;
+        }
+
+        public long prefix(String record) {
+            return comparator_.prefix(record);
+        }
+
+        public int compare(String a, String b) {
+            comparisons_++;
+            return comparator_.compare(a, b);
+        }
+
+        public int compare(String a, long aPrefix, String b, long bPrefix) {
+            comparisons_++;
+            return comparator_.compare(a, aPrefix, b, bPrefix);
+        }
+
+        // Returns the number of comparisons made so far
+        public long comparisons() {
+            return comparisons_;
+        }
+    }
+}
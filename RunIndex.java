@@ -0,0 +1,159 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  RunIndex.java
+ *  Purpose: the byte offset and byte length of every run in a file of runs. CreateRuns saves the index
+ *	next to the .runs file as <filename>.runs.idx, one "offset length" line per run, so Merge can open
+ *	each run directly instead of finding the run boundaries by comparing lines. When the runs were written
+ *	compressed with -compress the index starts with a "codec <name>" line, so they are read back with the
+ *	codec they were written with, and when the lines carry -key sort keys it starts with a "keyed" line.
+ *	Runs whose records were combined with -combine start with a "combine <name>" line.
+ *
+ */
+class RunIndex {
+    // Offsets and lengths of the runs, in the order the runs appear in the file
+    private long[] offsets_ = new long[16];
+    private long[] lengths_ = new long[16];
+    private int size_ = 0;
+    // Codec the runs were written with, one of the names in BlockCompression
+    private String codec_ = BlockCompression.NONE;
+    // Whether the lines have -key sort keys in front of them
+    private boolean keyed_ = false;
+    // Name of the -combine combiner the records were made by, or null
+    private String combine_ = null;
+
+    // Public method to record the next run in the file
+    public void add(long offset, long length) {
+        if (size_ == offsets_.length) {
+            offsets_ = Arrays.copyOf(offsets_, size_ * 2);
+            lengths_ = Arrays.copyOf(lengths_, size_ * 2);
+        }
+        offsets_[size_] = offset;
+        lengths_[size_] = length;
+        size_++;
+    }
+
+    // Public method returning the number of runs in the index
+    public int size() {
+        return size_;
+    }
+
+    // Public method returning the byte offset of a run
+    public long offset(int run) {
+        return offsets_[run];
+    }
+
+    // Public method returning the byte length of a run
+    public long length(int run) {
+        return lengths_[run];
+    }
+
+    // Public method returning the total byte length of the runs
+    public long bytes() {
+        long bytes = 0;
+        for (int i = 0; i < size_; i++) {
+            bytes += lengths_[i];
+        }
+        return bytes;
+    }
+
+    // Public method returning the codec the runs were written with
+    public String codec() {
+        return codec_;
+    }
+
+    // Public method to record the codec the runs are written with
+    public void setCodec(String codec) {
+        codec_ = codec;
+    }
+
+    // Public method returning whether the lines have -key sort keys in front of them
+    public boolean keyed() {
+        return keyed_;
+    }
+
+    // Public method to record whether the lines have -key sort keys in front of them
+    public void setKeyed(boolean keyed) {
+        keyed_ = keyed;
+    }
+
+    // Public method returning the name of the -combine combiner the records were made by, or null
+    public String combine() {
+        return combine_;
+    }
+
+    // Public method to record the -combine combiner the records are made by, which may be null
+    public void setCombine(Combiner combiner) {
+        combine_ = combiner == null ? null : Combiner.name(combiner);
+    }
+
+    // Public method returning the index file that belongs to a file of runs
+    public static File indexFile(File runsFile) {
+        return new File(runsFile.getPath() + ".idx");
+    }
+
+    // Public method to write the index to a file, one "offset length" line per run after
+    // the codec, keyed and combine lines, which are left out when the runs are plain lines
+    public void save(File file) throws IOException {
+        PrintWriter pw = new PrintWriter(new FileWriter(file));
+        if (BlockCompression.isCompressed(codec_)) {
+            pw.println("codec " + codec_);
+        }
+        if (keyed_) {
+            pw.println("keyed");
+        }
+        if (combine_ != null) {
+            pw.println("combine " + combine_);
+        }
+        for (int i = 0; i < size_; i++) {
+            pw.println(offsets_[i] + " " + lengths_[i]);
+        }
+        pw.close();
+        if (pw.checkError()) {
+            throw new IOException("unable to write run index " + file);
+        }
+    }
+
+    // Public method to read an index written by save
+    public static RunIndex load(File file) throws IOException {
+        RunIndex index = new RunIndex();
+        BufferedReader br = new BufferedReader(new FileReader(file));
+        try {
+            String line;
+            while ((line = br.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.equals("keyed")) {
+                    index.setKeyed(true);
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                if (space < 0) {
+                    throw new IOException("malformed run index line: " + line);
+                }
+                if (line.startsWith("codec ")) {
+                    index.setCodec(line.substring(space + 1));
+                    continue;
+                }
+                if (line.startsWith("combine ")) {
+                    index.combine_ = line.substring(space + 1);
+                    continue;
+                }
+                index.add(Long.parseLong(line.substring(0, space)), Long.parseLong(line.substring(space + 1)));
+            }
+        }
+        finally {
+            br.close();
+        }
+        return index;
+    }
+}
@@ -0,0 +1,234 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  RunReader.java
+ *  Purpose: reads the lines of a file of runs written by RunWriter, either the whole file or only the
+ *	bytes of a single run taken from a RunIndex, in which case readRecord returns null at the end of
+ *	that run. Given the RunIndex of the whole file it reads the runs one after another, returning null
+ *	at the end of each until nextRun moves on to the next, so the run boundaries come from the index and
+ *	not from the lines. Runs compressed with -compress are decompressed as they are read, with the codec
+ *	taken from the index or given with the run, and front-coded runs are rebuilt a line at a time. With
+ *	-key it puts the sort keys in front of each line it returns, and with -combine the combiner's first
+ *	record for the line, which is how CreateRuns reads its input.
+ *	It can also hand over the lines of an Iterator, for sorting lines that are not in a file.
+ *
+ */
+class RunReader {
+    private BufferedReader reader_;
+    // Records of a front-coded run, read in place of reader_
+    private FrontCoding.Decoder records_;
+    // Encoder that puts the -key sort keys in front of every line read, or null to return the lines as they are
+    private KeySpec.Encoder keys_;
+    // Combiner that makes the record of every line read, or null
+    private Combiner combiner_;
+    // Lines handed over by an Iterator instead of read from a file
+    private Iterator<String> lines_;
+    // The file and its index when its runs are read one at a time, the run being read and the stream of its bytes
+    private FileInputStream file_;
+    private RunIndex runs_;
+    private int run_ = -1;
+    private BoundedInputStream runBytes_;
+    // Lines returned so far
+    private long lineCount_ = 0;
+
+    // RunReader constructor for reading every line of a file
+    public RunReader(File file) throws IOException {
+        reader_ = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16);
+    }
+
+    // RunReader constructor for reading only the run stored at the given offset and length of a file
+    public RunReader(File file, long offset, long length) throws IOException {
+        this(file, offset, length, 0);
+    }
+
+    // RunReader constructor for reading a single run through a buffer of about bufferSize bytes, where each
+    // buffered char takes two bytes, or through the default 64k char buffer when bufferSize is 0
+    public RunReader(File file, long offset, long length, int bufferSize) throws IOException {
+        this(file, offset, length, bufferSize, false);
+    }
+
+    // RunReader constructor as above, which with readAhead reads the run on a thread of its own a block ahead
+    // of the lines being returned. The read-ahead blocks then take the bufferSize bytes between them
+    public RunReader(File file, long offset, long length, int bufferSize, boolean readAhead) throws IOException {
+        this(file, offset, length, bufferSize, readAhead, BlockCompression.NONE);
+    }
+
+    // RunReader constructor as above for a run written with the named codec. Read-ahead reads the compressed
+    // bytes, and the blocks are decompressed on this thread as the lines are read
+    public RunReader(File file, long offset, long length, int bufferSize, boolean readAhead, String codec) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(offset);
+        InputStream run = new BoundedInputStream(in, length);
+        if (readAhead) {
+            int blockSize = bufferSize > 0 ? bufferSize / AsyncStreams.READ_BLOCKS : AsyncStreams.BLOCK;
+            run = new AsyncStreams.ReadAhead(run, (int) Math.max(16, Math.min(blockSize, length)));
+            // The blocks already hold the bytes read ahead, so the lines are decoded through a small buffer
+            bufferSize = 1 << 14;
+        }
+        if (codec.equals(BlockCompression.DEFLATE)) {
+            // Each block is decompressed whole, so only a small buffer is needed for decoding the lines
+            run = BlockCompression.decode(codec, run);
+            bufferSize = 1 << 14;
+        }
+        if (codec.equals(BlockCompression.FRONT)) {
+            records_ = new FrontCoding.Decoder(run, (int) Math.min(bufferSize > 0 ? bufferSize : 1 << 16, length));
+            return;
+        }
+        reader_ = new BufferedReader(new InputStreamReader(run, StandardCharsets.UTF_8),
+                (int) Math.max(16, Math.min(bufferSize > 0 ? bufferSize / 2 : 1 << 16, length)));
+    }
+
+    // RunReader constructor for reading the runs of a file one at a time, as listed in its index. The file is
+    // opened once and the runs are read in order, starting with the first
+    public RunReader(File file, RunIndex runs) throws IOException {
+        file_ = new FileInputStream(file);
+        runs_ = runs;
+        nextRun();
+    }
+
+    // RunReader constructor for reading the lines of an Iterator, so runs can be created from lines that are
+    // not in a file. A null line ends the lines as the end of a file would
+    public RunReader(Iterator<String> lines) {
+        lines_ = lines;
+    }
+
+    // Public method to have every line read from here on returned as the record CreateRuns sorts, with the
+    // -key sort keys in front of it and made into a -combine record
+    public void configure(SortOptions options) {
+        if (options.key != null) {
+            keys_ = options.key.encoder();
+        }
+        combiner_ = options.combine;
+    }
+
+    // Public method returning the next line, or null once the file or run has been read
+    public String readRecord() throws IOException {
+        String line = readLine();
+        if (line == null) {
+            return null;
+        }
+        lineCount_++;
+        if (keys_ != null) {
+            line = keys_.encode(line);
+        }
+        if (combiner_ != null) {
+            line = Combiner.first(combiner_, line, keys_ != null);
+        }
+        return line;
+    }
+
+    // Private method returning the next line as it was read
+    private String readLine() throws IOException {
+        if (lines_ != null) {
+            return lines_.hasNext() ? lines_.next() : null;
+        }
+        if (records_ != null) {
+            int length = records_.next();
+            return length < 0 ? null : new String(records_.line, 0, length, StandardCharsets.UTF_8);
+        }
+        if (reader_ == null) {
+            return null;
+        }
+        return reader_.readLine();
+    }
+
+    // Public method returning the number of lines returned so far
+    public long records() {
+        return lineCount_;
+    }
+
+    // Public method to move on to the next run of a file read with its index, returning false when there are no
+    // more runs. Only the bytes of that run can then be read, however the lines in it compare with the run before
+    public boolean nextRun() throws IOException {
+        if (runs_ == null || run_ + 1 >= runs_.size()) {
+            return false;
+        }
+        run_++;
+        long offset = runs_.offset(run_);
+        long length = runs_.length(run_);
+        // Runs written by RunWriter follow on from each other, so the file only needs moving if one was left unread
+        boolean followsOn = runBytes_ != null && runBytes_.remaining_ == 0
+                && runs_.offset(run_ - 1) + runs_.length(run_ - 1) == offset;
+        if (!followsOn) {
+            file_.getChannel().position(offset);
+        }
+        runBytes_ = new BoundedInputStream(file_, length);
+        InputStream run = BlockCompression.decode(runs_.codec(), runBytes_);
+        if (runs_.codec().equals(BlockCompression.FRONT)) {
+            records_ = new FrontCoding.Decoder(run, (int) Math.min(1 << 16, length));
+            return true;
+        }
+        reader_ = new BufferedReader(new InputStreamReader(run, StandardCharsets.UTF_8),
+                (int) Math.max(16, Math.min(1 << 16, length)));
+        return true;
+    }
+
+    // Public method to close the underlying file
+    public void close() throws IOException {
+        if (reader_ != null) {
+            reader_.close();
+        }
+        if (records_ != null) {
+            records_.close();
+        }
+        if (file_ != null) {
+            file_.close();
+        }
+    }
+
+    // An input stream that stops after a fixed number of bytes of the stream it wraps
+    static class BoundedInputStream extends FilterInputStream {
+        private long remaining_;
+
+        BoundedInputStream(InputStream in, long length) {
+            super(in);
+            remaining_ = length;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining_ <= 0) {
+                return -1;
+            }
+            int b = super.read();
+            if (b >= 0) {
+                remaining_--;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining_ <= 0) {
+                return -1;
+            }
+            int n = super.read(b, off, (int) Math.min(len, remaining_));
+            if (n > 0) {
+                remaining_ -= n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(Math.min(n, remaining_));
+            remaining_ -= skipped;
+            return skipped;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return (int) Math.min(super.available(), remaining_);
+        }
+    }
+}
@@ -0,0 +1,264 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  RunWriter.java
+ *  Purpose: writes lines to a file of runs as UTF-8 text ending in '\n', keeping count of the bytes
+ *	written so that the offset and length of every run can be recorded in a RunIndex as it is written.
+ *	Lines can be given as Strings, which are encoded into a reused buffer, or as UTF-8 bytes that are
+ *	written as they are. Given a codec other than "none" the lines are compressed in blocks by
+ *	BlockCompression, each run starting a new block, or with "front" are front-coded by FrontCoding,
+ *	and the index records the offsets and lengths as written along with the codec. With -combine the last
+ *	record given is held back until the next one shows whether the two combine into one.
+ *
+ */
+class RunWriter {
+    private OutputStream out_;
+    // Reused buffer that Strings are encoded into
+    private byte[] encoded_ = new byte[256];
+    // Compressing stream the lines go through, or null when they are written as they are
+    private BlockCompression.BlockOutputStream blocks_;
+    // Encoder the lines are front-coded with, or null when they are written as lines
+    private FrontCoding.Encoder front_;
+    // Byte position in the file of the next line written, and where the current run started. When compressed,
+    // the position only moves on as each run ends, and the lines of the current run are counted in runBytes_
+    private long position_;
+    private long runStart_;
+    private long runBytes_ = 0;
+    // Byte position the writer started at
+    private long start_;
+    // Lines written so far, after any were combined
+    private long records_ = 0;
+    private RunIndex index_ = new RunIndex();
+    // Whether each line loses the sort key -key put in front of it, as it does in the sorted file
+    private boolean stripKeys_ = false;
+    // The -combine group that holds back the last record until the next shows whether they combine, or null, and
+    // whether each record written is finished into the line it ends as in the sorted file
+    private Combiner.Group group_;
+    private boolean finish_ = false;
+
+    // RunWriter constructor, passed the file to write and whether to append to what is already there
+    public RunWriter(File file, boolean append) throws IOException {
+        this(file, append, false);
+    }
+
+    // RunWriter constructor as above, which with writeBehind writes the file on a thread of its own
+    public RunWriter(File file, boolean append, boolean writeBehind) throws IOException {
+        this(file, append, writeBehind, BlockCompression.NONE);
+    }
+
+    // RunWriter constructor as above, which compresses the runs with the named codec
+    public RunWriter(File file, boolean append, boolean writeBehind, String codec) throws IOException {
+        position_ = append ? file.length() : 0;
+        runStart_ = position_;
+        start_ = position_;
+        out_ = buffer(new FileOutputStream(file, append), writeBehind);
+        if (codec.equals(BlockCompression.DEFLATE)) {
+            blocks_ = new BlockCompression.BlockOutputStream(out_);
+            out_ = blocks_;
+        }
+        else if (codec.equals(BlockCompression.FRONT)) {
+            front_ = new FrontCoding.Encoder();
+        }
+        index_.setCodec(codec);
+    }
+
+    // RunWriter constructor for writing into an existing file from the given byte position, leaving the rest
+    // of the file as it is, so several writers can fill separate parts of the same file at once
+    public RunWriter(File file, long position) throws IOException {
+        this(file, position, false);
+    }
+
+    // RunWriter constructor as above, which with writeBehind writes the file on a thread of its own
+    public RunWriter(File file, long position, boolean writeBehind) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        channel.position(position);
+        position_ = position;
+        runStart_ = position;
+        start_ = position;
+        out_ = buffer(Channels.newOutputStream(channel), writeBehind);
+    }
+
+    // Public method to write one line to the current run
+    public void writeRecord(String record) throws IOException {
+        int length = encode(record);
+        if (front_ != null || stripKeys_ || group_ != null) {
+            writeRecord(encoded_, 0, length);
+            return;
+        }
+        encoded_[length] = '\n';
+        out_.write(encoded_, 0, length + 1);
+        advance(length + 1);
+        records_++;
+    }
+
+    // Public method to write one line, already encoded as UTF-8 bytes, to the current run
+    public void writeRecord(byte[] record, int offset, int length) throws IOException {
+        if (group_ != null) {
+            // A record is only written once the next one is known not to combine with it
+            if (group_.combine(record, offset, length)) {
+                return;
+            }
+            if (group_.length >= 0) {
+                write(group_.record, 0, group_.length);
+            }
+            group_.hold(record, offset, length);
+            return;
+        }
+        write(record, offset, length);
+    }
+
+    // Public method to close the current run, adding it to the index. Returns false if the run was empty
+    public boolean endRun() throws IOException {
+        if (group_ != null && group_.length >= 0) {
+            write(group_.record, 0, group_.length);
+            group_.clear();
+        }
+        if (runBytes_ == 0) {
+            return false;
+        }
+        if (blocks_ != null) {
+            // The run's last block is written out so the next run starts a block of its own
+            blocks_.finishBlock();
+            position_ = start_ + blocks_.written();
+        }
+        if (front_ != null) {
+            front_.reset();
+        }
+        index_.add(runStart_, position_ - runStart_);
+        runStart_ = position_;
+        runBytes_ = 0;
+        return true;
+    }
+
+    // Public method to set the writer up for the -key and -combine options. Records that belong together are
+    // combined, and when last is set each line is written as it is in the sorted file: without its sort key and
+    // finished by the combiner
+    public void configure(SortOptions options, boolean last) {
+        stripKeys_ = last && options.key != null;
+        if (options.combine != null) {
+            group_ = new Combiner.Group(options.combine, options.key != null);
+            finish_ = last;
+        }
+    }
+
+    // Public method returning whether records that belong together are combined
+    public boolean combines() {
+        return group_ != null;
+    }
+
+    // Public method returning the number of lines written so far, counting a line held back once it is written
+    public long records() {
+        return records_;
+    }
+
+    // Public method returning the runs closed so far
+    public RunIndex index() {
+        return index_;
+    }
+
+    // Public method returning the byte position the next line will be written at, which for a compressed file
+    // is only known once the current run has ended
+    public long position() {
+        return position_;
+    }
+
+    // Public method to flush and close the file, first writing out any record still held back
+    public void close() throws IOException {
+        if (group_ != null && group_.length >= 0) {
+            endRun();
+        }
+        out_.close();
+    }
+
+    // Private method to write a line to the current run as it is to be stored
+    private void write(byte[] record, int offset, int length) throws IOException {
+        records_++;
+        if (stripKeys_) {
+            // Everything up to the first separator is the key, as the key itself never holds one
+            for (int i = offset; i < offset + length; i++) {
+                if (record[i] == KeySpec.SEPARATOR) {
+                    length -= i + 1 - offset;
+                    offset = i + 1;
+                    break;
+                }
+            }
+        }
+        if (finish_) {
+            length = group_.finish(record, offset, length);
+            record = group_.line;
+            offset = 0;
+        }
+        if (front_ != null) {
+            int n = front_.encode(record, offset, length, -1);
+            out_.write(front_.record, 0, n);
+            advance(n);
+            return;
+        }
+        out_.write(record, offset, length);
+        out_.write('\n');
+        advance(length + 1);
+    }
+
+    // Private method to count the bytes of a line written to the current run
+    private void advance(int length) {
+        runBytes_ += length;
+        if (blocks_ == null) {
+            position_ += length;
+        }
+    }
+
+    // Private method to buffer the file's stream, either in this thread or in blocks written by a thread of their own
+    private static OutputStream buffer(OutputStream out, boolean writeBehind) {
+        if (writeBehind) {
+            return new AsyncStreams.WriteBehind(out, AsyncStreams.BLOCK);
+        }
+        return new BufferedOutputStream(out, 1 << 16);
+    }
+
+    // Private method to encode a line as UTF-8 into the reused buffer, leaving room for the '\n', and return
+    // the number of bytes it takes. An unpaired surrogate is written as '?', as the JDK's encoder does
+    private int encode(String s) {
+        int length = s.length();
+        if (encoded_.length < length * 3 + 1) {
+            encoded_ = new byte[length * 3 + 1];
+        }
+        byte[] out = encoded_;
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                out[n++] = (byte) c;
+            }
+            else if (c < 0x800) {
+                out[n++] = (byte) (0xC0 | (c >> 6));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(s.charAt(i + 1))) {
+                // A surrogate pair encodes a single four byte character
+                int codePoint = Character.toCodePoint(c, s.charAt(++i));
+                out[n++] = (byte) (0xF0 | (codePoint >> 18));
+                out[n++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                out[n++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+            else if (Character.isSurrogate(c)) {
+                out[n++] = '?';
+            }
+            else {
+                out[n++] = (byte) (0xE0 | (c >> 12));
+                out[n++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                out[n++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,262 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  SampleSort.java
+ *  Purpose: sorts a file across several worker JVMs, for inputs too large for one heap and one disk queue.
+ *	The coordinator samples lines at evenly spaced byte offsets of the input, as RangeMerge samples runs,
+ *	and picks a splitter key between each pair of workers. It then reads the input once and sends each
+ *	line to the worker whose key range holds it, over that worker's standard input. Each worker is this
+ *	program started with -worker and the same options, which sorts the lines it is sent with
+ *	ExternalSorter, so replacement selection and the k-way merge are the per-worker engine, and writes
+ *	them sorted to its standard output. Every line of a worker sorts before every line of the next, so
+ *	the coordinator only has to copy the workers' output one after another into the sorted file. The
+ *	workers only see lines in and lines out, so one could as well be started on another machine.
+ *
+ *	With -key the splitters are compared with the keys of the lines, and with -combine they are cut to
+ *	the group, so the records that combine always go to the same worker. Each worker takes the -Xsort
+ *	budget for itself, or a quarter of its heap, and the coordinator's -Xmx, -Xms, -Xss and -XX: JVM options
+ *	are passed on.
+ *
+ */
+public class SampleSort {
+    // The coordinator's JVM options that each worker is started with as well
+    private static final String[] WORKER_JVM_OPTIONS = { "-Xmx", "-Xms", "-Xss", "-XX:" };
+
+    public static void main(String[] args) {
+        // The coordinator's own -workers option is taken out, and everything else is passed on to the workers
+        boolean worker = args.length > 0 && args[0].equals("-worker");
+        int workers = Runtime.getRuntime().availableProcessors();
+        List<String> flags = new ArrayList<>();
+        for (int i = worker ? 1 : 0; i < args.length; i++) {
+            if (args[i].startsWith("-workers=")) {
+                try {
+                    workers = Integer.parseInt(args[i].substring(9));
+                }
+                catch (NumberFormatException e) {
+                    workers = 0;
+                }
+                if (workers < 1) {
+                    System.err.println("Error: -workers must be a whole number greater than 0");
+                    System.exit(1);
+                }
+            }
+            else {
+                flags.add(args[i]);
+            }
+        }
+        SortOptions options;
+        try {
+            options = SortOptions.parse(flags.toArray(new String[0]));
+        }
+        catch (IllegalArgumentException e) {
+            System.err.println("Error: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+        try {
+            if (worker) {
+                work(options);
+                return;
+            }
+            if (options.positional.length != 1) {
+                System.err.println("Usage: java SampleSort [-workers=n] [-threads=n] [-comparator=prefix|string|<class>] [-adaptive] [-engine=heap|loser] [-io=stream|nio] [-compress=none|deflate|front] [-key=fields] [-delimiter=c] [-combine=distinct|count|<class>] [-metrics=text|json] [-Xsort=bytes] <filename>");
+                System.exit(1);
+                return;
+            }
+            String filename = options.positional[0];
+            flags.remove(filename);
+            long lines = sort(new File(filename), new File(filename + ".sorted"), workers, flags, options);
+            System.err.println("Total lines: " + lines);
+        }
+        catch (Exception e) {
+            System.err.println("Error: " + e);
+            System.exit(1);
+        }
+    }
+
+    // Public method to sort the file in into the file out with the given number of worker JVMs, each started with
+    // the given flags. Returns the number of lines sorted
+    public static long sort(File in, File out, int workers, List<String> flags, SortOptions options) throws IOException {
+        // Choosing the splitters from the sampled lines made into the records the workers sort
+        KeySpec.Encoder keys = options.key == null ? null : options.key.encoder();
+        List<String> samples = new ArrayList<>();
+        for (String line : RangeMerge.sample(in, 0, in.length(), workers * RangeMerge.SAMPLES)) {
+            samples.add(record(line, keys, options));
+        }
+        List<String> splitters = RangeMerge.choose(samples, workers, options);
+        int partitions = splitters.size() + 1;
+        System.err.println("Workers: " + partitions);
+
+        Process[] processes = new Process[partitions];
+        Writer[] inputs = new Writer[partitions];
+        Thread[] copies = new Thread[partitions];
+        File[] parts = new File[partitions];
+        IOException[] failures = new IOException[partitions];
+        long[] counts = new long[partitions];
+        boolean finished = false;
+        try {
+            for (int p = 0; p < partitions; p++) {
+                parts[p] = File.createTempFile("SampleSort-", ".txt");
+                parts[p].deleteOnExit();
+                processes[p] = start(flags);
+                inputs[p] = new BufferedWriter(new OutputStreamWriter(processes[p].getOutputStream(),
+                        StandardCharsets.UTF_8), 1 << 16);
+                // Each worker's sorted lines are copied to a file of its own as they come, so no worker waits on
+                // the others to be read
+                InputStream output = processes[p].getInputStream();
+                File part = parts[p];
+                int number = p;
+                copies[p] = new Thread(() -> {
+                    try {
+                        Files.copy(output, part.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    catch (IOException e) {
+                        failures[number] = e;
+                    }
+                });
+                copies[p].start();
+            }
+
+            // Sending every line to the worker whose range its record falls in
+            RunReader reader = new RunReader(in);
+            try {
+                String line;
+                while ((line = reader.readRecord()) != null) {
+                    int p = partition(record(line, keys, options), splitters, options.comparator);
+                    inputs[p].write(line);
+                    inputs[p].write('\n');
+                    counts[p]++;
+                }
+            }
+            finally {
+                reader.close();
+            }
+            for (Writer input : inputs) {
+                input.close();
+            }
+
+            // Waiting for every worker to finish before the parts are put together in order
+            for (int p = 0; p < partitions; p++) {
+                copies[p].join();
+                int status = processes[p].waitFor();
+                if (failures[p] != null) {
+                    throw failures[p];
+                }
+                if (status != 0) {
+                    throw new IOException("worker " + p + " failed with exit status " + status);
+                }
+                System.err.println("Worker " + p + ": " + counts[p] + " lines");
+            }
+            RangeMerge.concatenate(parts, out);
+            finished = true;
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while sorting", e);
+        }
+        finally {
+            for (int p = 0; p < partitions; p++) {
+                if (!finished && processes[p] != null) {
+                    processes[p].destroyForcibly();
+                }
+                if (parts[p] != null) {
+                    parts[p].delete();
+                }
+            }
+        }
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        return total;
+    }
+
+    // Private method to sort the lines of standard input onto standard output as a worker
+    private static void work(SortOptions options) throws IOException, javax.management.JMException {
+        if (options.jmx) {
+            options.metrics.register("SampleSort-" + ProcessHandle.current().pid());
+        }
+        BufferedReader in = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8), 1 << 16);
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(FileDescriptor.out),
+                StandardCharsets.UTF_8), 1 << 16);
+        MergedIterator sorted = ExternalSorter.iterator(in.lines().iterator(), options);
+        try {
+            while (sorted.hasNext()) {
+                out.write(sorted.next());
+                out.write('\n');
+            }
+        }
+        catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        finally {
+            sorted.close();
+            out.close();
+        }
+        options.metrics.print(options.metricsFormat);
+    }
+
+    // Private method to start a worker JVM with this one's heap, stack and -XX: options, passed the given flags.
+    // Other JVM options, such as -Xdebug, -Xrunjdwp or -Xlog, are left to the coordinator, as every worker would
+    // otherwise try to open the same debug port or log file
+    private static Process start(List<String> flags) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        for (String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            for (String option : WORKER_JVM_OPTIONS) {
+                if (argument.startsWith(option)) {
+                    command.add(argument);
+                    break;
+                }
+            }
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(SampleSort.class.getName());
+        command.add("-worker");
+        command.addAll(flags);
+        return new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+    }
+
+    // Private method returning the record a line is sorted as, with any -key sort keys in front of it and made into
+    // a -combine record, as the workers make it
+    private static String record(String line, KeySpec.Encoder keys, SortOptions options) {
+        String record = keys == null ? line : keys.encode(line);
+        return options.combine == null ? record : Combiner.first(options.combine, record, keys != null);
+    }
+
+    // Private method returning the partition a record belongs to: the number of splitters it is no smaller than
+    private static int partition(String record, List<String> splitters, RecordComparator comparator) {
+        int low = 0;
+        int high = splitters.size();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (comparator.compare(record, splitters.get(middle)) < 0) {
+                high = middle;
+            }
+            else {
+                low = middle + 1;
+            }
+        }
+        return low;
+    }
+}
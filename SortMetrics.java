@@ -0,0 +1,287 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  SortMetrics.java
+ *  Purpose: what a sort did, phase by phase. Each phase keeps its wall time and the records and bytes it
+ *	read and wrote, the comparisons it made and, for CreateRuns, the runs it wrote. The merge phase also
+ *	keeps every merge it made: the runs it took in, how long it took and what it wrote. The heaps and
+ *	trees count in plain fields of their own, which only their thread touches, and add their counts to
+ *	the phase once a piece of work is finished, so counting costs an increment in the inner loops and a
+ *	lock once per run or merge. Every SortOptions has its metrics, shared by its copies, which -metrics
+ *	prints when a program ends and -jmx shows over JMX while it runs.
+ *
+ */
+class SortMetrics implements SortMetricsMBean {
+    final Phase createRuns = new Phase("createRuns");
+    final Phase merge = new Phase("merge");
+
+    // The counts of one phase, added to by every thread that works in it
+    static class Phase {
+        final String name;
+        private long nanos_ = 0;
+        private long started_;
+        private boolean running_ = false;
+        private long recordsRead_ = 0;
+        private long recordsWritten_ = 0;
+        private long bytesRead_ = 0;
+        private long bytesWritten_ = 0;
+        private long comparisons_ = 0;
+        private long runs_ = 0;
+        private final List<Merged> merges_ = new ArrayList<>();
+
+        Phase(String name) {
+            this.name = name;
+        }
+
+        // Starts timing the phase, which adds to any time it has already run
+        synchronized void start() {
+            started_ = System.nanoTime();
+            running_ = true;
+        }
+
+        // Stops timing the phase
+        synchronized void end() {
+            if (running_) {
+                nanos_ += System.nanoTime() - started_;
+                running_ = false;
+            }
+        }
+
+        synchronized void read(long records, long bytes) {
+            recordsRead_ += records;
+            bytesRead_ += bytes;
+        }
+
+        synchronized void wrote(long records, long bytes) {
+            recordsWritten_ += records;
+            bytesWritten_ += bytes;
+        }
+
+        synchronized void compared(long comparisons) {
+            comparisons_ += comparisons;
+        }
+
+        synchronized void addRuns(long runs) {
+            runs_ += runs;
+        }
+
+        // Records a merge of fanIn runs that started at the given System.nanoTime, adding what it read, wrote
+        // and compared to the phase. Bytes read are added by whoever knows the lengths of the runs merged
+        synchronized void merged(int fanIn, long startNanos, long recordsRead, long recordsWritten, long bytesWritten,
+                long comparisons) {
+            merges_.add(new Merged(fanIn, System.nanoTime() - startNanos, recordsRead, recordsWritten, bytesWritten,
+                    comparisons));
+            read(recordsRead, 0);
+            wrote(recordsWritten, bytesWritten);
+            compared(comparisons);
+        }
+
+        synchronized boolean running() {
+            return running_;
+        }
+
+        synchronized double seconds() {
+            return (nanos_ + (running_ ? System.nanoTime() - started_ : 0)) / 1e9;
+        }
+
+        synchronized long recordsRead() {
+            return recordsRead_;
+        }
+
+        synchronized long recordsWritten() {
+            return recordsWritten_;
+        }
+
+        synchronized long bytesRead() {
+            return bytesRead_;
+        }
+
+        synchronized long bytesWritten() {
+            return bytesWritten_;
+        }
+
+        synchronized long comparisons() {
+            return comparisons_;
+        }
+
+        synchronized long runs() {
+            return runs_;
+        }
+
+        synchronized List<Merged> merges() {
+            return new ArrayList<>(merges_);
+        }
+
+        // Whether anything has been timed or counted in the phase
+        synchronized boolean used() {
+            return running_ || nanos_ > 0 || recordsRead_ > 0 || bytesRead_ > 0 || !merges_.isEmpty();
+        }
+    }
+
+    // One merge of the merge phase
+    static class Merged {
+        final int fanIn;
+        final long nanos;
+        final long recordsRead;
+        final long recordsWritten;
+        final long bytesWritten;
+        final long comparisons;
+
+        Merged(int fanIn, long nanos, long recordsRead, long recordsWritten, long bytesWritten, long comparisons) {
+            this.fanIn = fanIn;
+            this.nanos = nanos;
+            this.recordsRead = recordsRead;
+            this.recordsWritten = recordsWritten;
+            this.bytesWritten = bytesWritten;
+            this.comparisons = comparisons;
+        }
+
+        double seconds() {
+            return nanos / 1e9;
+        }
+    }
+
+    // Public method to show the metrics over JMX as SortMerge:type=SortMetrics,name=<name>
+    public void register(String name) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().registerMBean(new StandardMBean(this, SortMetricsMBean.class),
+                new ObjectName("SortMerge:type=SortMetrics,name=" + name));
+    }
+
+    // Public method to print the metrics to standard error as "text" or "json", or nothing when format is null
+    public void print(String format) {
+        if (format == null) {
+            return;
+        }
+        System.err.print(format.equals("json") ? toJson() + "\n" : toText());
+    }
+
+    // Public method returning the metrics as lines of text, leaving out a phase that never ran
+    public String toText() {
+        StringBuilder text = new StringBuilder();
+        for (Phase phase : new Phase[] { createRuns, merge }) {
+            if (!phase.used()) {
+                continue;
+            }
+            text.append(String.format(Locale.ROOT, "%s: %.3f s, read %d records (%d bytes), wrote %d records (%d bytes), %d comparisons",
+                    phase.name, phase.seconds(), phase.recordsRead(), phase.bytesRead(), phase.recordsWritten(),
+                    phase.bytesWritten(), phase.comparisons()));
+            if (phase == createRuns) {
+                text.append(String.format(Locale.ROOT, ", %d runs averaging %.1f records (%.0f bytes)", phase.runs(),
+                        average(phase.recordsWritten(), phase.runs()), average(phase.bytesWritten(), phase.runs())));
+            }
+            else {
+                text.append(", ").append(phase.merges().size()).append(" merges");
+            }
+            text.append('\n');
+            int number = 1;
+            for (Merged merged : phase.merges()) {
+                text.append(String.format(Locale.ROOT, "  merge %d: fan-in %d, %.3f s, %d records, %d bytes, %.0f records/s, %.1f MB/s%n",
+                        number++, merged.fanIn, merged.seconds(), merged.recordsWritten, merged.bytesWritten,
+                        rate(merged.recordsWritten, merged.nanos), rate(merged.bytesWritten, merged.nanos) / (1 << 20)));
+            }
+        }
+        return text.toString();
+    }
+
+    // Public method returning the metrics as a JSON object with a member for each phase that ran
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        for (Phase phase : new Phase[] { createRuns, merge }) {
+            if (!phase.used()) {
+                continue;
+            }
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append('"').append(phase.name).append("\":{");
+            json.append(String.format(Locale.ROOT, "\"seconds\":%.6f,\"recordsRead\":%d,\"recordsWritten\":%d,"
+                    + "\"bytesRead\":%d,\"bytesWritten\":%d,\"comparisons\":%d", phase.seconds(), phase.recordsRead(),
+                    phase.recordsWritten(), phase.bytesRead(), phase.bytesWritten(), phase.comparisons()));
+            if (phase == createRuns) {
+                json.append(String.format(Locale.ROOT, ",\"runs\":%d,\"averageRunRecords\":%.1f,\"averageRunBytes\":%.1f",
+                        phase.runs(), average(phase.recordsWritten(), phase.runs()),
+                        average(phase.bytesWritten(), phase.runs())));
+            }
+            else {
+                json.append(",\"merges\":[");
+                boolean first = true;
+                for (Merged merged : phase.merges()) {
+                    json.append(first ? "" : ",");
+                    json.append(String.format(Locale.ROOT, "{\"fanIn\":%d,\"seconds\":%.6f,\"recordsRead\":%d,"
+                            + "\"recordsWritten\":%d,\"bytesWritten\":%d,\"comparisons\":%d,\"recordsPerSecond\":%.1f,"
+                            + "\"bytesPerSecond\":%.1f}", merged.fanIn, merged.seconds(), merged.recordsRead,
+                            merged.recordsWritten, merged.bytesWritten, merged.comparisons,
+                            rate(merged.recordsWritten, merged.nanos), rate(merged.bytesWritten, merged.nanos)));
+                    first = false;
+                }
+                json.append(']');
+            }
+            json.append('}');
+        }
+        return json.append('}').toString();
+    }
+
+    public String getPhase() {
+        if (createRuns.running()) {
+            return createRuns.name;
+        }
+        return merge.running() ? merge.name : "idle";
+    }
+
+    public double getCreateRunsSeconds() {
+        return createRuns.seconds();
+    }
+
+    public double getMergeSeconds() {
+        return merge.seconds();
+    }
+
+    public long getRecordsRead() {
+        return createRuns.recordsRead() + merge.recordsRead();
+    }
+
+    public long getRecordsWritten() {
+        return createRuns.recordsWritten() + merge.recordsWritten();
+    }
+
+    public long getBytesRead() {
+        return createRuns.bytesRead() + merge.bytesRead();
+    }
+
+    public long getBytesWritten() {
+        return createRuns.bytesWritten() + merge.bytesWritten();
+    }
+
+    public long getComparisons() {
+        return createRuns.comparisons() + merge.comparisons();
+    }
+
+    public long getRuns() {
+        return createRuns.runs();
+    }
+
+    public int getMerges() {
+        return merge.merges().size();
+    }
+
+    public String getJson() {
+        return toJson();
+    }
+
+    private static double average(long total, long count) {
+        return count == 0 ? 0 : (double) total / count;
+    }
+
+    // Private method returning a count per second over the given nanoseconds
+    private static double rate(long count, long nanos) {
+        return nanos == 0 ? 0 : count * 1e9 / nanos;
+    }
+}
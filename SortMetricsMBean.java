@@ -0,0 +1,36 @@
+/**
+ *  Balanced k-way Sort Merge
+ *  SortMetricsMBean.java
+ *  Purpose: the attributes SortMetrics shows over JMX when a program is run with -jmx, so a long sort can
+ *	be watched from jconsole or any other JMX client while it runs. The totals cover both phases, and the
+ *	Json attribute holds the whole summary -metrics=json prints, merge by merge.
+ *
+ */
+public interface SortMetricsMBean {
+    // The phase running, "createRuns" or "merge", or "idle" between and after them
+    String getPhase();
+
+    // Wall time of each phase in seconds, including the time so far of a phase that is running
+    double getCreateRunsSeconds();
+
+    double getMergeSeconds();
+
+    // Totals over both phases
+    long getRecordsRead();
+
+    long getRecordsWritten();
+
+    long getBytesRead();
+
+    long getBytesWritten();
+
+    long getComparisons();
+
+    // Runs written by CreateRuns and merges finished so far
+    long getRuns();
+
+    int getMerges();
+
+    // The summary -metrics=json prints
+    String getJson();
+}
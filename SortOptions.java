@@ -0,0 +1,255 @@
+import java.util.Arrays;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  SortOptions.java
+ *  Purpose: reads the optional "-name=value" flags that may be given to CreateRuns and Merge ahead of
+ *	their usual arguments, and holds the chosen settings. Anything that is not a flag is kept, in order,
+ *	as a positional argument.
+ *
+ */
+class SortOptions implements Cloneable {
+    // Merge engine used for each pass: "heap" for MinHeap or "loser" for LoserTree
+    String engine = "heap";
+    // How Merge schedules its passes: "balanced" over 2k temporary files, "index" straight from the run index or
+    // "polyphase" over k + 1 temporary files
+    String mode = "balanced";
+    // Number of threads used where the work can be split between them
+    int threads = 1;
+    // How Merge reads and writes runs: "stream" decodes lines to Strings, "nio" keeps them as UTF-8 bytes
+    String io = "stream";
+    // Order the lines are sorted in, which must be the same for CreateRuns and Merge
+    RecordComparator comparator = new RecordComparator.Prefix();
+    // Whether CreateRuns uses replacement selection over a byte arena, with the heap size given in bytes
+    boolean arena = false;
+    // Whether CreateRuns uses AdaptiveRuns, which takes lines that arrive in order or in reverse order into its
+    // runs without heap work
+    boolean adaptive = false;
+    // Whether merges read ahead and write behind on threads of their own, so disk and CPU work overlap
+    boolean async = false;
+    // Codec the temporary files of runs are written with: "none", "deflate" for compressed 64k blocks or "front"
+    // for front-coded lines
+    String compress = BlockCompression.NONE;
+    // Sort keys given with -key, or null to sort whole lines, and the delimiter the key columns are split at
+    KeySpec key = null;
+    String delimiter = "\t";
+    // The fields given with -key, read once every flag is known so -delimiter can come after it
+    private String keyFields = null;
+    // Combiner that collapses records that belong together, given with -combine, or null to keep every record
+    Combiner combine = null;
+    // Memory budget in bytes given with -Xsort, shared by both phases, or 0 when the sizes are given directly
+    long memory = 0;
+    // Size of the buffer each run is read through while merging, or 0 for the default of the I/O path
+    int bufferSize = 0;
+    // What the sort did, which copies of the options share, how -metrics prints it when a program ends ("text" or
+    // "json", or null not to), and whether -jmx shows it over JMX while the program runs
+    SortMetrics metrics = new SortMetrics();
+    String metricsFormat = null;
+    boolean jmx = false;
+    // With -limit only the first lines of the merge are wanted, as many as given or all of them when -1, and with
+    // -until only the lines that sort no later than the given line, or all of them when null
+    long limit = -1;
+    String until = null;
+    // The arguments left once the flags have been removed
+    String[] positional = new String[0];
+
+    // Public method to split the command-line arguments into flags and positional arguments
+    public static SortOptions parse(String[] args) {
+        SortOptions options = new SortOptions();
+        String[] positional = new String[args.length];
+        int count = 0;
+        for (String arg : args) {
+            // A flag is a dash followed by a letter, so negative numbers are still read as positional
+            if (arg.length() > 1 && arg.charAt(0) == '-' && Character.isLetter(arg.charAt(1))) {
+                int equals = arg.indexOf('=');
+                String name = equals < 0 ? arg.substring(1) : arg.substring(1, equals);
+                String value = equals < 0 ? "" : arg.substring(equals + 1);
+                options.set(name, value);
+            }
+            else {
+                positional[count++] = arg;
+            }
+        }
+        options.positional = Arrays.copyOf(positional, count);
+        if (options.keyFields != null) {
+            options.key = KeySpec.parse(options.keyFields, options.delimiter);
+        }
+        // The nio path compares raw bytes, which only matches the String order the built-in comparators use
+        if ((options.io.equals("nio") || options.arena) && !(options.comparator instanceof RecordComparator.Prefix
+                || options.comparator instanceof RecordComparator.Natural)) {
+            throw new IllegalArgumentException("-io=nio and -arena can only be used with the prefix or string comparator");
+        }
+        // AdaptiveRuns holds Strings, so it takes the place of the String heap and not of the arena
+        if (options.adaptive && options.arena) {
+            throw new IllegalArgumentException("-adaptive cannot be used with -arena");
+        }
+        // Keyed lines are ordered by their encoded keys, which only the String order of the built-in comparators reads
+        if (options.key != null && !(options.comparator instanceof RecordComparator.Prefix
+                || options.comparator instanceof RecordComparator.Natural)) {
+            throw new IllegalArgumentException("-key can only be used with the prefix or string comparator");
+        }
+        // Records are combined when they sit next to each other, which only the String order is sure to give
+        if (options.combine != null && !(options.comparator instanceof RecordComparator.Prefix
+                || options.comparator instanceof RecordComparator.Natural)) {
+            throw new IllegalArgumentException("-combine can only be used with the prefix or string comparator");
+        }
+        return options;
+    }
+
+    // Public method returning a copy of the settings, which can be changed without changing these
+    public SortOptions copy() {
+        try {
+            return (SortOptions) clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Private method to store a single flag, rejecting unknown names and values
+    private void set(String name, String value) {
+        switch (name) {
+            case "engine":
+                if (!value.equals("heap") && !value.equals("loser")) {
+                    throw new IllegalArgumentException("-engine must be heap or loser");
+                }
+                engine = value;
+                break;
+            case "mode":
+                if (!value.equals("balanced") && !value.equals("index") && !value.equals("polyphase")) {
+                    throw new IllegalArgumentException("-mode must be balanced, index or polyphase");
+                }
+                mode = value;
+                break;
+            case "io":
+                if (!value.equals("stream") && !value.equals("nio")) {
+                    throw new IllegalArgumentException("-io must be stream or nio");
+                }
+                io = value;
+                break;
+            case "comparator":
+                comparator = RecordComparator.forName(value);
+                break;
+            case "arena":
+                if (!value.isEmpty() && !value.equals("true") && !value.equals("false")) {
+                    throw new IllegalArgumentException("-arena takes no value");
+                }
+                arena = !value.equals("false");
+                break;
+            case "adaptive":
+                if (!value.isEmpty() && !value.equals("true") && !value.equals("false")) {
+                    throw new IllegalArgumentException("-adaptive takes no value");
+                }
+                adaptive = !value.equals("false");
+                break;
+            case "async":
+                if (!value.isEmpty() && !value.equals("true") && !value.equals("false")) {
+                    throw new IllegalArgumentException("-async takes no value");
+                }
+                async = !value.equals("false");
+                break;
+            case "compress":
+                if (!value.equals(BlockCompression.NONE) && !value.equals(BlockCompression.DEFLATE)
+                        && !value.equals(BlockCompression.FRONT)) {
+                    throw new IllegalArgumentException("-compress must be none, deflate or front");
+                }
+                compress = value;
+                break;
+            case "key":
+                keyFields = value;
+                break;
+            case "delimiter":
+                delimiter = value;
+                break;
+            case "combine":
+                combine = Combiner.forName(value);
+                break;
+            case "metrics":
+                if (!value.isEmpty() && !value.equals("text") && !value.equals("json")) {
+                    throw new IllegalArgumentException("-metrics must be text or json");
+                }
+                metricsFormat = value.isEmpty() ? "text" : value;
+                break;
+            case "jmx":
+                if (!value.isEmpty() && !value.equals("true") && !value.equals("false")) {
+                    throw new IllegalArgumentException("-jmx takes no value");
+                }
+                jmx = !value.equals("false");
+                break;
+            case "Xsort":
+                memory = parseSize(value);
+                break;
+            case "threads":
+                threads = parsePositive(name, value);
+                break;
+            case "limit":
+                try {
+                    limit = Long.parseLong(value);
+                }
+                catch (NumberFormatException e) {
+                    limit = -1;
+                }
+                if (limit < 0) {
+                    throw new IllegalArgumentException("-limit must be a whole number of lines");
+                }
+                break;
+            case "until":
+                until = value;
+                break;
+            default:
+                throw new IllegalArgumentException("unknown option -" + name);
+        }
+    }
+
+    // Public method to read a size in bytes, such as 512k, 64m or 2g
+    public static long parseSize(String value) {
+        String digits = value.toLowerCase();
+        long unit = 1;
+        if (digits.endsWith("k")) {
+            unit = 1L << 10;
+        }
+        else if (digits.endsWith("m")) {
+            unit = 1L << 20;
+        }
+        else if (digits.endsWith("g")) {
+            unit = 1L << 30;
+        }
+        if (unit != 1) {
+            digits = digits.substring(0, digits.length() - 1);
+        }
+        try {
+            long size = Long.parseLong(digits) * unit;
+            if (size > 0) {
+                return size;
+            }
+        }
+        catch (NumberFormatException e) {
+            // Reported below along with sizes that are too small
+        }
+        throw new IllegalArgumentException("size must be a number of bytes greater than 0, such as 512k, 64m or 2g: " + value);
+    }
+
+    // Public method to read the size of an arena, which is held in a single array and so must be below 2g
+    public static int parseArenaSize(String value) {
+        long size = parseSize(value);
+        if (size > Integer.MAX_VALUE - 16) {
+            throw new IllegalArgumentException("arena size must be below 2g: " + value);
+        }
+        return (int) size;
+    }
+
+    // Private method to read the value of a flag that must be a whole number greater than 0
+    private static int parsePositive(String name, String value) {
+        try {
+            int number = Integer.parseInt(value);
+            if (number > 0) {
+                return number;
+            }
+        }
+        catch (NumberFormatException e) {
+            // Reported below along with values that are too small
+        }
+        throw new IllegalArgumentException("-" + name + " must be a whole number greater than 0");
+    }
+}
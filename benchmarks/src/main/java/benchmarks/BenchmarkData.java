@@ -0,0 +1,90 @@
+package benchmarks;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  BenchmarkData.java
+ *  Purpose: the records the benchmarks sort, generated from a fixed seed so every run of a benchmark sees
+ *	the same data. Each distribution is one of:
+ *	  random     - records of random letters and digits
+ *	  presorted  - the random records in sorted order
+ *	  reversed   - the random records in reverse sorted order
+ *	  duplicates - records drawn from only 64 distinct random records
+ *
+ */
+public final class BenchmarkData {
+    // The distributions a benchmark can be given
+    public static final String RANDOM = "random";
+    public static final String PRESORTED = "presorted";
+    public static final String REVERSED = "reversed";
+    public static final String DUPLICATES = "duplicates";
+
+    private static final String ALPHABET = "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz";
+    private static final int DISTINCT = 64;
+    private static final long SEED = 42;
+
+    private BenchmarkData() {
+    }
+
+    // Public method returning count records of the given length in the named distribution
+    public static String[] records(int count, int length, String distribution) {
+        Random random = new Random(SEED);
+        String[] records = new String[count];
+        switch (distribution) {
+            case RANDOM:
+            case PRESORTED:
+            case REVERSED:
+                for (int i = 0; i < count; i++) {
+                    records[i] = record(random, length);
+                }
+                break;
+            case DUPLICATES:
+                String[] distinct = new String[DISTINCT];
+                for (int i = 0; i < DISTINCT; i++) {
+                    distinct[i] = record(random, length);
+                }
+                for (int i = 0; i < count; i++) {
+                    records[i] = distinct[random.nextInt(DISTINCT)];
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("unknown distribution " + distribution);
+        }
+        if (distribution.equals(PRESORTED)) {
+            Arrays.sort(records);
+        }
+        else if (distribution.equals(REVERSED)) {
+            Arrays.sort(records, Collections.reverseOrder());
+        }
+        return records;
+    }
+
+    // Public method to write count records of the given length in the named distribution to a file, one a line
+    public static void write(Path file, int count, int length, String distribution) throws IOException {
+        String[] records = records(count, length, distribution);
+        try (BufferedWriter out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            for (String record : records) {
+                out.write(record);
+                out.write('\n');
+            }
+        }
+    }
+
+    // Private method returning a record of random letters and digits
+    private static String record(Random random, int length) {
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,124 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  HeapBenchmark.java
+ *  Purpose: the replacement selection heap of CreateRuns. Each benchmark works through a whole heap of
+ *	heapSize records, so its score is the time for heapSize operations:
+ *	  insert     - fills an empty heap one record at a time
+ *	  downheap   - replaces the root of a full heap with the next record and restores heap order, as
+ *	               every line read in the steady state of replacement selection does
+ *	  reheap     - puts a heap of records that are in no order into heap order, as each new run does
+ *	  createRuns - runs the whole of replacement selection over twice heapSize records, writing the runs
+ *	  adaptiveRuns - creates runs from the same records as CreateRuns -adaptive does, which skips the heap
+ *	               for records that arrive presorted or reversed
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeapBenchmark {
+    @Param({ "1000", "100000" })
+    public int heapSize;
+
+    @Param({ "16", "128" })
+    public int recordLength;
+
+    @Param({ BenchmarkData.RANDOM, BenchmarkData.PRESORTED, BenchmarkData.REVERSED, BenchmarkData.DUPLICATES })
+    public String distribution;
+
+    private Hooks hooks;
+    // The records, the first heapSize of which fill the heap and the rest replace its root
+    private String[] records;
+    // A heap of the first heapSize records in heap order, copied into heap and keys before each use
+    private String[] full;
+    private long[] fullKeys;
+    private String[] heap;
+    private long[] keys;
+    private long[] recordKeys;
+    private File runsFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        hooks = Hooks.load();
+        records = BenchmarkData.records(heapSize * 2, recordLength, distribution);
+        recordKeys = new long[records.length];
+        for (int i = 0; i < records.length; i++) {
+            recordKeys[i] = hooks.prefix(records[i]);
+        }
+        heap = new String[heapSize];
+        keys = new long[heapSize];
+        full = new String[heapSize];
+        fullKeys = new long[heapSize];
+        for (int i = 0; i < heapSize; i++) {
+            hooks.insert(full, fullKeys, i, records[i]);
+        }
+        runsFile = File.createTempFile("HeapBenchmark-", ".runs");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        runsFile.delete();
+    }
+
+    @Benchmark
+    public String[] insert() {
+        // Every slot is written before it is read, so the arrays need no clearing between invocations
+        for (int i = 0; i < heapSize; i++) {
+            hooks.insert(heap, keys, i, records[i]);
+        }
+        return heap;
+    }
+
+    @Benchmark
+    public String[] downheap() {
+        System.arraycopy(full, 0, heap, 0, heapSize);
+        System.arraycopy(fullKeys, 0, keys, 0, heapSize);
+        for (int i = heapSize; i < records.length; i++) {
+            heap[0] = records[i];
+            keys[0] = recordKeys[i];
+            hooks.downheap(heap, keys, 0, heapSize);
+        }
+        return heap;
+    }
+
+    @Benchmark
+    public String[] reheap() {
+        System.arraycopy(records, heapSize, heap, 0, heapSize);
+        System.arraycopy(recordKeys, heapSize, keys, 0, heapSize);
+        return hooks.reheap(heap, keys);
+    }
+
+    @Benchmark
+    public int createRuns() throws IOException {
+        return hooks.createRuns(Arrays.asList(records).iterator(), runsFile, heapSize);
+    }
+
+    @Benchmark
+    public int adaptiveRuns() throws IOException {
+        return hooks.adaptiveRuns(Arrays.asList(records).iterator(), runsFile, heapSize);
+    }
+}
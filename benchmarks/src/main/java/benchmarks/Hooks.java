@@ -0,0 +1,55 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.List;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  Hooks.java
+ *  Purpose: the calls the benchmarks make into the sort. The sort's classes are in the default package,
+ *	which no class in a named package can refer to, and JMH only generates benchmarks for classes in a
+ *	named package. So BenchmarkHooks, in the default package next to the sort, implements these calls and
+ *	the benchmarks load it by name once. It is the only implementation, so the JIT inlines every call.
+ *
+ */
+public interface Hooks {
+    // CreateRuns.insert with the default prefix comparator
+    String[] insert(String[] heap, long[] keys, int pos, String record);
+
+    // CreateRuns.downheap with the default prefix comparator
+    String[] downheap(String[] heap, long[] keys, int pos, int notionalCapacity);
+
+    // CreateRuns.reheap with the default prefix comparator
+    String[] reheap(String[] heap, long[] keys);
+
+    // The key prefix the default comparator caches for a record
+    long prefix(String record);
+
+    // Runs replacement selection over the records with a heap of heapSize lines, writing the runs to runsFile,
+    // and returns the number of runs
+    int createRuns(Iterator<String> records, File runsFile, int heapSize) throws IOException;
+
+    // Creates runs from the records as CreateRuns -adaptive does, holding heapSize lines, and returns the number
+    // of runs
+    int adaptiveRuns(Iterator<String> records, File runsFile, int heapSize) throws IOException;
+
+    // Merges runs already sorted in memory into a single run in outputFile with one pass of the named engine
+    void merge(List<String[]> runs, File outputFile, String engine) throws IOException;
+
+    // Sorts the input file into the output file as CreateRuns and then Merge would, given the same flags
+    void sort(Path input, Path output, String[] flags) throws IOException;
+
+    // Public method to load BenchmarkHooks from the default package
+    static Hooks load() {
+        try {
+            return (Hooks) Class.forName("BenchmarkHooks").getDeclaredConstructor().newInstance();
+        }
+        catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("BenchmarkHooks must be on the class path", e);
+        }
+    }
+}
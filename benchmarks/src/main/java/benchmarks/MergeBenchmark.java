@@ -0,0 +1,85 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  MergeBenchmark.java
+ *  Purpose: a single pass of the merge engines, MinHeap.createPass and its LoserTree counterpart, over k
+ *	runs of runLength records held in memory, so the score is the time to merge k * runLength records
+ *	into one run written to a temporary file. The distribution decides how the runs interleave: random
+ *	and duplicates runs each cover the whole range of records, while presorted and reversed runs each
+ *	hold one block of the sorted records, added in ascending or descending order, so one run at a time
+ *	keeps winning: the first run added, or with reversed records the last.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+    @Param({ "2", "8", "64" })
+    public int k;
+
+    @Param({ "2000" })
+    public int runLength;
+
+    @Param({ "16", "128" })
+    public int recordLength;
+
+    @Param({ BenchmarkData.RANDOM, BenchmarkData.PRESORTED, BenchmarkData.REVERSED, BenchmarkData.DUPLICATES })
+    public String distribution;
+
+    @Param({ "heap", "loser" })
+    public String engine;
+
+    private Hooks hooks;
+    private List<String[]> runs;
+    private File outputFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        hooks = Hooks.load();
+        String[] records = BenchmarkData.records(k * runLength, recordLength, distribution);
+        runs = new ArrayList<>();
+        for (int i = 0; i < k; i++) {
+            // Presorted and reversed records are already in order, so each run is a block of them
+            String[] run = Arrays.copyOfRange(records, i * runLength, (i + 1) * runLength);
+            Arrays.sort(run);
+            runs.add(run);
+        }
+        outputFile = File.createTempFile("MergeBenchmark-", ".txt");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        outputFile.delete();
+    }
+
+    @Benchmark
+    public void createPass() throws IOException {
+        hooks.merge(runs, outputFile, engine);
+    }
+}
@@ -0,0 +1,80 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  SortBenchmark.java
+ *  Purpose: whole sorts of a generated file, from creating the runs to writing the sorted file, in a
+ *	temporary directory that is removed afterwards. The flags are given to both phases as they would be
+ *	given to CreateRuns and Merge, after an -Xsort budget of the given memory, so any option can be
+ *	measured with -p flags="...". Each sort is timed on its own, as a sort is long enough to need no
+ *	repeating and leaves files behind that the next one replaces.
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SortBenchmark {
+    @Param({ "500000" })
+    public int lines;
+
+    @Param({ "64" })
+    public int recordLength;
+
+    @Param({ BenchmarkData.RANDOM, BenchmarkData.PRESORTED, BenchmarkData.REVERSED, BenchmarkData.DUPLICATES })
+    public String distribution;
+
+    @Param({ "8m" })
+    public String memory;
+
+    @Param({ "-mode=balanced", "-mode=polyphase", "-mode=index", "-mode=index -engine=loser", "-mode=index -io=nio", "-threads=4" })
+    public String flags;
+
+    private Hooks hooks;
+    private Path directory;
+    private Path input;
+    private Path output;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        hooks = Hooks.load();
+        directory = Files.createTempDirectory("SortBenchmark-");
+        input = directory.resolve("input.txt");
+        output = directory.resolve("input.sorted");
+        BenchmarkData.write(input, lines, recordLength, distribution);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(output);
+        Files.deleteIfExists(input);
+        Files.deleteIfExists(directory);
+    }
+
+    @Benchmark
+    public void sort() throws IOException {
+        hooks.sort(input, output, ("-Xsort=" + memory + " " + flags).split(" "));
+    }
+}
@@ -0,0 +1,120 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  AdaptiveRunsTest.java
+ *  Purpose: checks the runs -adaptive creates from input already in order. Sorted and reverse-sorted
+ *	input each give a single run however small the heap, a small line at the end only starts a second
+ *	run, and with -combine the records of a reversed stretch are still combined.
+ *
+ */
+class AdaptiveRunsTest {
+    private static final int HEAP = 1000;
+    private static final int LINES = 20000;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void presortedInputGivesOneRun() throws IOException {
+        List<String> lines = lines();
+        List<List<String>> runs = createRuns(lines, "-adaptive");
+        assertEquals(List.of(lines), runs);
+    }
+
+    @Test
+    void reversedInputGivesOneRun() throws IOException {
+        List<String> lines = lines();
+        List<String> reversed = new ArrayList<>(lines);
+        Collections.reverse(reversed);
+        List<List<String>> runs = createRuns(reversed, "-adaptive");
+        assertEquals(List.of(lines), runs);
+    }
+
+    @Test
+    void outlierAtTheTailStartsOneMoreRun() throws IOException {
+        for (boolean reversed : new boolean[] { false, true }) {
+            List<String> lines = lines();
+            if (reversed) {
+                Collections.reverse(lines);
+            }
+            lines.add("line0000");
+            List<List<String>> runs = createRuns(lines, "-adaptive");
+            assertTrue(runs.size() <= 2, "runs: " + runs.size());
+            for (List<String> run : runs) {
+                assertSorted(run);
+            }
+            Collections.sort(lines);
+            List<String> written = new ArrayList<>();
+            runs.forEach(written::addAll);
+            Collections.sort(written);
+            assertEquals(lines, written);
+        }
+    }
+
+    @Test
+    void reversedStretchIsCombined() throws IOException {
+        List<String> lines = lines();
+        List<String> input = new ArrayList<>();
+        for (int i = lines.size() - 1; i >= 0; i--) {
+            input.add(lines.get(i));
+            input.add(lines.get(i));
+        }
+        List<List<String>> runs = createRuns(input, "-adaptive", "-combine=count");
+        assertEquals(1, runs.size());
+        List<String> counted = new ArrayList<>();
+        for (String line : lines) {
+            counted.add(line + KeySpec.SEPARATOR + "2");
+        }
+        assertEquals(counted, runs.get(0));
+    }
+
+    // Returning LINES distinct lines in ascending order
+    private static List<String> lines() {
+        List<String> lines = new ArrayList<>();
+        for (int i = 1; i <= LINES; i++) {
+            lines.add(String.format("line%05d", i));
+        }
+        return lines;
+    }
+
+    // Creating runs of the lines with a heap of HEAP lines and returning the records of every run
+    private List<List<String>> createRuns(List<String> lines, String... args) throws IOException {
+        File input = dir.resolve("input.txt").toFile();
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        File runsFile = dir.resolve("input.txt.runs").toFile();
+        RunIndex index = CreateRuns.createRuns(input, runsFile, HEAP, SortOptions.parse(args));
+        List<List<String>> runs = new ArrayList<>();
+        for (int i = 0; i < index.size(); i++) {
+            List<String> run = new ArrayList<>();
+            RunReader reader = new RunReader(runsFile, index.offset(i), index.length(i));
+            String record;
+            while ((record = reader.readRecord()) != null) {
+                run.add(record);
+            }
+            reader.close();
+            runs.add(run);
+        }
+        return runs;
+    }
+
+    private static void assertSorted(List<String> run) {
+        for (int i = 1; i < run.size(); i++) {
+            assertTrue(run.get(i - 1).compareTo(run.get(i)) <= 0, "out of order at " + i);
+        }
+    }
+}
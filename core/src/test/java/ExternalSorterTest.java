@@ -0,0 +1,58 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  ExternalSorterTest.java
+ *  Purpose: checks that an Iterator source is sorted whether or not it fits in the lines read ahead, and
+ *	that a source failing part way through is passed on to the caller.
+ *
+ */
+class ExternalSorterTest {
+    @Test
+    void sortsSourceSmallerThanTheSample() throws IOException {
+        List<String> sorted = new ArrayList<>();
+        ExternalSorter.sort(Stream.of("cherry", "apple", "banana"), sorted::add, new SortOptions());
+        assertEquals(List.of("apple", "banana", "cherry"), sorted);
+    }
+
+    @Test
+    void sortsSourceLargerThanTheSample() throws IOException {
+        Random random = new Random(3);
+        List<String> lines = random.ints(20000).mapToObj(Integer::toString).collect(Collectors.toList());
+        List<String> sorted = new ArrayList<>();
+        ExternalSorter.sort(lines.iterator(), sorted::add, SortOptions.parse(new String[] { "-Xsort=4m" }));
+        lines.sort(null);
+        assertEquals(lines, sorted);
+    }
+
+    @Test
+    void failingSourceIsPassedOn() {
+        Iterator<String> source = new Iterator<String>() {
+            private int taken = 0;
+
+            public boolean hasNext() {
+                return true;
+            }
+
+            public String next() {
+                if (++taken > 5000) {
+                    throw new IllegalStateException("source failed");
+                }
+                return Integer.toString(taken);
+            }
+        };
+        assertThrows(IllegalStateException.class, () -> ExternalSorter.sort(source, line -> { }, new SortOptions()));
+    }
+}
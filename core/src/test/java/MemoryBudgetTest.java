@@ -0,0 +1,92 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  MemoryBudgetTest.java
+ *  Purpose: checks the fan-in the -Xsort budget gives Merge, which must keep the files the merges hold
+ *	open within MemoryBudget.MAX_OPEN_FILES however large the budget is, and the sizes it gives CreateRuns,
+ *	which must not grow past what the input can need.
+ *
+ */
+class MemoryBudgetTest {
+    private static final long BUDGET = 1L << 30;
+    private static final int RUNS = 3319;
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void largeBudgetKeepsBalancedMergeWithinOpenFiles() {
+        int k = MemoryBudget.fanIn(BUDGET, RUNS, 1, MemoryBudget.maxOpenFanIn(1, true));
+        assertTrue(2 * k <= MemoryBudget.MAX_OPEN_FILES, "k = " + k);
+    }
+
+    @Test
+    void largeBudgetKeepsIndexMergeWithinOpenFiles() {
+        int k = MemoryBudget.fanIn(BUDGET, RUNS, 1, MemoryBudget.maxOpenFanIn(1, false));
+        assertTrue(k + 1 <= MemoryBudget.MAX_OPEN_FILES, "k = " + k);
+    }
+
+    @Test
+    void largeBudgetKeepsEveryModeWithinOpenFiles() {
+        for (String mode : new String[] { "balanced", "index", "polyphase" }) {
+            for (int threads : new int[] { 1, 4, 64 }) {
+                SortOptions options = SortOptions.parse(new String[] { "-Xsort=1g", "-mode=" + mode,
+                        "-threads=" + threads });
+                int k = Merge.sizeMerge(RUNS, 0, options);
+                int open = threads * (k + 1);
+                if (mode.equals("balanced")) {
+                    open = Math.max(open, 2 * k);
+                }
+                assertTrue(open <= MemoryBudget.MAX_OPEN_FILES, mode + " with " + threads + " threads: k = " + k);
+                assertTrue(k >= 2, mode + " with " + threads + " threads: k = " + k);
+            }
+        }
+    }
+
+    @Test
+    void fewRunsStillMergeInOnePass() {
+        int k = MemoryBudget.fanIn(BUDGET, 100, 1, MemoryBudget.maxOpenFanIn(1, true));
+        assertEquals(100, k);
+    }
+
+    @Test
+    void limitedFanInStillTakesFewestPasses() {
+        int limit = MemoryBudget.maxOpenFanIn(1, true);
+        int k = MemoryBudget.fanIn(BUDGET, RUNS, 1, limit);
+        assertEquals(MemoryBudget.passes(RUNS, limit), MemoryBudget.passes(RUNS, k));
+    }
+
+    @Test
+    void largeBudgetOverSmallFileAllocatesLittle() throws IOException {
+        File input = dir.resolve("small.txt").toFile();
+        Files.write(input.toPath(), List.of("cherry", "apple", "banana"), StandardCharsets.UTF_8);
+        assertEquals(MemoryBudget.MIN_ARENA, MemoryBudget.arenaSize(BUDGET, input));
+        assertTrue(MemoryBudget.heapSize(BUDGET, input) <= 8, "heap: " + MemoryBudget.heapSize(BUDGET, input));
+        assertTrue(MemoryBudget.adaptiveSize(BUDGET, input) <= 8, "adaptive: " + MemoryBudget.adaptiveSize(BUDGET, input));
+    }
+
+    @Test
+    void sizingRunsLeavesTheOptionsAlone() throws IOException {
+        File input = dir.resolve("small.txt").toFile();
+        Files.write(input.toPath(), List.of("cherry", "apple", "banana"), StandardCharsets.UTF_8);
+        SortOptions options = SortOptions.parse(new String[] { "-Xsort=1g" });
+        long lines = CreateRuns.sizeRuns(input, BUDGET, options);
+        assertTrue(!options.arena && lines <= 8, "heap: " + lines);
+        options.arena = CreateRuns.budgetArena(options);
+        assertTrue(options.arena);
+        assertEquals(MemoryBudget.MIN_ARENA, CreateRuns.sizeRuns(input, BUDGET, options));
+    }
+}
@@ -0,0 +1,87 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  MergePassesTest.java
+ *  Purpose: checks that the balanced merge makes exactly the passes it plans with either engine. Keyed
+ *	runs from an arena hold many equal keys and some inputs run out before others, which used to leave an
+ *	empty input inside the MinHeap and cut its runs short.
+ *
+ */
+class MergePassesTest {
+    @TempDir
+    Path dir;
+
+    @Test
+    void heapMakesThePlannedPasses() throws IOException {
+        assertPlannedPasses("heap");
+    }
+
+    @Test
+    void loserTreeMakesThePlannedPasses() throws IOException {
+        assertPlannedPasses("loser");
+    }
+
+    // Creating keyed runs of a TSV file with a small arena, then merging them with k = 4 and checking the passes
+    // made against the plan and the sorted file against the input sorted in memory
+    private void assertPlannedPasses(String engine) throws IOException {
+        File input = dir.resolve("input.tsv").toFile();
+        Random random = new Random(42);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 60000; i++) {
+            lines.add("name" + random.nextInt(1000) + "\t" + (random.nextInt(200) - 100) + "\t" + random.nextDouble());
+        }
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+
+        String created = run(() -> CreateRuns.main(new String[] { "-arena", "-key=2:long", "20k", input.getPath() }));
+        assertTrue(number(created, "Total runs") > 16, created);
+        String merged = run(() -> Merge.main(new String[] { "-key=2:long", "-engine=" + engine, "4",
+                input.getPath() + ".runs" }));
+        assertEquals(number(merged, "Planned Passes"), number(merged, "Total Passes"), merged);
+
+        lines.sort((a, b) -> {
+            int byKey = Long.compare(Long.parseLong(a.split("\t")[1]), Long.parseLong(b.split("\t")[1]));
+            return byKey != 0 ? byKey : a.compareTo(b);
+        });
+        assertEquals(lines, Files.readAllLines(new File(input.getPath() + ".sorted").toPath(), StandardCharsets.UTF_8));
+    }
+
+    // Running a program and returning what it printed to standard error
+    static String run(Runnable program) {
+        PrintStream err = System.err;
+        ByteArrayOutputStream captured = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(captured, true, StandardCharsets.UTF_8));
+        try {
+            program.run();
+        }
+        finally {
+            System.setErr(err);
+        }
+        return captured.toString(StandardCharsets.UTF_8);
+    }
+
+    // Returning the number printed after the given label
+    static int number(String output, String label) {
+        Matcher matcher = Pattern.compile(label + ": (\\d+)").matcher(output);
+        assertTrue(matcher.find(), "no " + label + " in " + output);
+        return Integer.parseInt(matcher.group(1));
+    }
+}
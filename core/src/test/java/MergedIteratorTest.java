@@ -0,0 +1,134 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  MergedIteratorTest.java
+ *  Purpose: checks the lazy merge against the input sorted in memory, and that its limit and until bounds
+ *	stop the merges made before the first line as well as the last one.
+ *
+ */
+class MergedIteratorTest {
+    private static final int K = 3;
+
+    @TempDir
+    Path dir;
+    private List<String> sorted;
+    private File runsFile;
+    private RunIndex index;
+
+    // Creating about 30 runs of random lines, which take several merges with k = 3
+    @BeforeEach
+    void createRuns() throws IOException {
+        File input = dir.resolve("input.txt").toFile();
+        Random random = new Random(7);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 30000; i++) {
+            lines.add(Long.toString(random.nextLong(), 36));
+        }
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        runsFile = dir.resolve("input.txt.runs").toFile();
+        index = CreateRuns.createRuns(input, runsFile, 500, new SortOptions());
+        assertTrue(index.size() > 20, "runs: " + index.size());
+        Collections.sort(lines);
+        sorted = lines;
+    }
+
+    @Test
+    void mergesEveryLineWithEitherEngine() {
+        for (String engine : new String[] { "heap", "loser" }) {
+            SortOptions options = SortOptions.parse(new String[] { "-engine=" + engine });
+            MergedIterator merge = MergedIterator.open(runsFile, index, K, options);
+            assertEquals(sorted, drain(merge), engine);
+            assertEquals(IndexMerge.plannedMerges(index.size(), K), merge.passes(), engine);
+        }
+    }
+
+    @Test
+    void limitBoundsEveryMerge() {
+        SortOptions options = new SortOptions();
+        MergedIterator merge = MergedIterator.open(runsFile, index, K, options).limit(100);
+        assertEquals(sorted.subList(0, 100), drain(merge));
+        // Each merge reads no more than the first 100 records of each of its runs, and one past them
+        long bound = (long) merge.passes() * K * 101;
+        assertTrue(options.metrics.merge.recordsRead() <= bound, "read " + options.metrics.merge.recordsRead());
+    }
+
+    @Test
+    void limitZeroMergesNothing() {
+        SortOptions options = new SortOptions();
+        MergedIterator merge = MergedIterator.open(runsFile, index, K, options).limit(0);
+        assertEquals(List.of(), drain(merge));
+        assertEquals(0, merge.passes());
+        assertEquals(0, options.metrics.merge.recordsRead());
+    }
+
+    @Test
+    void untilBoundsEveryMerge() {
+        String bound = sorted.get(2000);
+        for (String engine : new String[] { "heap", "loser" }) {
+            SortOptions options = SortOptions.parse(new String[] { "-engine=" + engine });
+            MergedIterator merge = MergedIterator.open(runsFile, index, K, options).until(bound);
+            assertEquals(sorted.subList(0, sorted.lastIndexOf(bound) + 1), drain(merge), engine);
+            assertTrue(options.metrics.merge.recordsRead() < sorted.size(), "read " + options.metrics.merge.recordsRead());
+        }
+    }
+
+    @Test
+    void untilWithKeyReturnsEveryLineOfTheBoundKey() throws IOException {
+        File input = dir.resolve("keyed.tsv").toFile();
+        Random random = new Random(11);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            lines.add(random.nextInt(100) + "\t" + Long.toString(random.nextLong(), 36));
+        }
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        File keyedRuns = dir.resolve("keyed.tsv.runs").toFile();
+        SortOptions options = SortOptions.parse(new String[] { "-key=1:long" });
+        RunIndex keyed = CreateRuns.createRuns(input, keyedRuns, 500, options);
+        // The bound's body sorts before every other line of key 40, which are all returned all the same
+        MergedIterator merge = MergedIterator.open(keyedRuns, keyed, K, options).until("40\t");
+        List<String> expected = new ArrayList<>();
+        for (String line : lines) {
+            if (Integer.parseInt(line.substring(0, line.indexOf('\t'))) <= 40) {
+                expected.add(line);
+            }
+        }
+        expected.sort((a, b) -> {
+            int byKey = Integer.compare(Integer.parseInt(a.split("\t")[0]), Integer.parseInt(b.split("\t")[0]));
+            return byKey != 0 ? byKey : a.compareTo(b);
+        });
+        assertEquals(expected, drain(merge));
+    }
+
+    @Test
+    void boundsAreSetBeforeTheFirstLine() {
+        MergedIterator merge = MergedIterator.open(runsFile, index, K, new SortOptions());
+        merge.next();
+        assertThrows(IllegalStateException.class, () -> merge.limit(10));
+        drain(merge);
+    }
+
+    // Returning every line left in a merge
+    private static List<String> drain(MergedIterator merge) {
+        List<String> lines = new ArrayList<>();
+        merge.forEachRemaining(lines::add);
+        return lines;
+    }
+}
@@ -0,0 +1,89 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+
+/**
+ *  Balanced k-way Sort Merge
+ *  PolyphaseMergeTest.java
+ *  Purpose: checks that the polyphase merge starts from the smallest perfect distribution of its runs, the
+ *	totals of Knuth's tables for each k, and that it makes exactly the passes it plans when some of those
+ *	runs are dummies.
+ *
+ */
+class PolyphaseMergeTest {
+    // The perfect totals for k = 2 to 5, the Fibonacci numbers and their higher order sequences
+    private static final long[][] PERFECT = {
+        { 1, 2, 3, 5, 8, 13, 21, 34, 55, 89, 144, 233, 377 },
+        { 1, 3, 5, 9, 17, 31, 57, 105, 193, 355 },
+        { 1, 4, 7, 13, 25, 49, 94, 181, 349 },
+        { 1, 5, 9, 17, 33, 65, 129, 253, 497 },
+    };
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void distributionIsTheSmallestPerfectOne() {
+        for (int k = 2; k <= 5; k++) {
+            long[] perfect = PERFECT[k - 2];
+            for (int runs = 1; runs <= perfect[perfect.length - 1]; runs++) {
+                long[] counts = PolyphaseMerge.distribution(runs, k);
+                assertEquals(k, counts.length);
+                long total = 0;
+                for (int i = 0; i < k; i++) {
+                    total += counts[i];
+                    assertTrue(i == 0 || counts[i] <= counts[i - 1], "k = " + k + ", runs = " + runs);
+                }
+                assertEquals(smallestAtLeast(perfect, runs), total, "k = " + k + ", runs = " + runs);
+            }
+        }
+    }
+
+    @Test
+    void makesThePlannedPasses() throws IOException {
+        File input = dir.resolve("input.txt").toFile();
+        Random random = new Random(20);
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 40000; i++) {
+            lines.add(Long.toString(random.nextLong(), 36));
+        }
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        String created = MergePassesTest.run(() -> CreateRuns.main(new String[] { "1000", input.getPath() }));
+        assertTrue(MergePassesTest.number(created, "Total runs") > 17, created);
+        Collections.sort(lines);
+
+        for (String engine : new String[] { "heap", "loser" }) {
+            for (int k = 2; k <= 5; k++) {
+                String[] args = { "-mode=polyphase", "-engine=" + engine, Integer.toString(k), input.getPath() + ".runs" };
+                String merged = MergePassesTest.run(() -> Merge.main(args));
+                assertEquals(MergePassesTest.number(merged, "Planned Passes"),
+                        MergePassesTest.number(merged, "Total Passes"), engine + ", k = " + k + ": " + merged);
+                assertEquals(lines, Files.readAllLines(new File(input.getPath() + ".sorted").toPath(),
+                        StandardCharsets.UTF_8), engine + ", k = " + k);
+            }
+        }
+    }
+
+    // Returning the first perfect total no smaller than the number of runs
+    private static long smallestAtLeast(long[] perfect, int runs) {
+        for (long total : perfect) {
+            if (total >= runs) {
+                return total;
+            }
+        }
+        throw new IllegalArgumentException("no perfect total listed for " + runs + " runs");
+    }
+}